@@ -8,7 +8,14 @@
 package ro.alexandrugris.diskutil;
 
 import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.util.*;
 import java.lang.reflect.*;
@@ -32,6 +39,35 @@ public class DiskUtility {
 
     private static Connection c = null;
 
+    /**
+     * Connection of a --serve thread running read-only commands next to the other clients, see ServerAction
+     */
+    private static final ThreadLocal<Connection> readConnection = new ThreadLocal<>();
+
+    /**
+     * Database of this process; shards run as child processes each started on their own database
+     */
+    private static final String DB_NAME = System.getProperty("diskutility.db", "AlexGrisDiskUtilityDb");
+
+    /**
+     * Opened on the first call to db(); --db can change it before that
+     */
+    private static String dbUrl = System.getProperty("diskutility.url", "jdbc:derby:" + DB_NAME + ";create=true");
+
+    private static final long MAIN_STARTED = System.currentTimeMillis();
+
+    private static final int STARTUP_JVM = 0;
+    private static final int STARTUP_DRIVER = 1;
+    private static final int STARTUP_BOOT = 2;
+    private static final int STARTUP_SCHEMA = 3;
+    private static final String[] STARTUP_STEPS = {"startup.jvm", "startup.driver", "startup.boot", "startup.schema"};
+    private static final long[] startupNanos = new long[STARTUP_STEPS.length];
+
+    /**
+     * When set with --fromSnapshot, the queries run on the snapshot instead of the database
+     */
+    private static Snapshot snapshot = null;
+
 
     @Retention(RetentionPolicy.RUNTIME) // Make this annotation accessible at runtime via reflection.
     @Target({ElementType.METHOD})       // This annotation can only be applied to class methods.
@@ -40,584 +76,7202 @@ public class DiskUtility {
     }
 
     /**
-     * Deletes a directory and all its subdirectories
+     * Counters, latency histograms and gauges collected while a command runs. main resets them before every
+     * command and writes them as one JSON line when it is done.
      */
-    private static class DeleteDirectoryAction {
+    private static class Metrics {
 
-        static PreparedStatement ps_findDirectory = null;
-        static PreparedStatement ps_findDirectoryChildren = null;
-        static PreparedStatement ps_deleteDirectoryChildren = null;
-        static PreparedStatement ps_deleteFilesFromDirectory = null;
-        static PreparedStatement ps_deleteDirectory = null;
-
-        int countDeletes = 0;
+        /**
+         * Log2 buckets of microseconds: bucket i counts the samples in [2^i, 2^(i+1)) us
+         */
+        private static class Histogram {
+            final java.util.concurrent.atomic.AtomicLongArray buckets = new java.util.concurrent.atomic.AtomicLongArray(40);
+            final java.util.concurrent.atomic.AtomicLong count = new java.util.concurrent.atomic.AtomicLong();
+            final java.util.concurrent.atomic.AtomicLong totalNanos = new java.util.concurrent.atomic.AtomicLong();
+            final java.util.concurrent.atomic.AtomicLong maxNanos = new java.util.concurrent.atomic.AtomicLong();
+
+            void add(long nanos) {
+                long us = Math.max(nanos / 1000, 1);
+                buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(us));
+                count.incrementAndGet();
+                totalNanos.addAndGet(nanos);
+                long max;
+                while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) ;
+            }
 
-        static {
+            /**
+             * Upper bound of the bucket holding the given quantile, in ms
+             */
+            double quantileMs(double q) {
+                long target = (long) Math.ceil(count.get() * q);
+                long seen = 0;
+                for (int i = 0; i < buckets.length(); i++) {
+                    seen += buckets.get(i);
+                    if (seen >= target && seen > 0)
+                        return Math.min((1L << (i + 1)) / 1000.0, maxNanos.get() / 1000000.0);
+                }
+                return 0;
+            }
+        }
 
-            Connection c = DiskUtility.c;
+        private static class Gauge {
+            long last, max, sum, samples;
 
-            try {
-                ps_findDirectory = c.prepareStatement("SELECT ID, DirPath, ParentID FROM Directories WHERE DirPath=?");
-                ps_findDirectoryChildren = c.prepareStatement("SELECT ID, DirPath FROM Directories WHERE ParentID=?");
-                ps_deleteDirectoryChildren = c.prepareStatement("DELETE FROM Directories WHERE ParentID=?");
-                ps_deleteFilesFromDirectory = c.prepareStatement("DELETE FROM Files WHERE DirectoryRef=?");
-                ps_deleteDirectory = c.prepareStatement("DELETE FROM Directories WHERE ID=?");
-            } catch (SQLException e) {
-                System.out.println(e);
+            synchronized void set(long value) {
+                last = value;
+                max = Math.max(max, value);
+                sum += value;
+                samples++;
             }
         }
 
-        void deleteDirRecursively(int dirId, String dir_name) throws SQLException {
+        /**
+         * Off unless asked for with --metrics or -Ddiskutility.metrics
+         */
+        static String file = System.getProperty("diskutility.metrics");
 
-            countDeletes++;
+        private static final java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.atomic.AtomicLong> counters = new java.util.concurrent.ConcurrentHashMap<>();
+        private static final java.util.concurrent.ConcurrentHashMap<String, Histogram> timers = new java.util.concurrent.ConcurrentHashMap<>();
+        private static final java.util.concurrent.ConcurrentHashMap<String, Gauge> gauges = new java.util.concurrent.ConcurrentHashMap<>();
 
-            if (countDeletes % 200 == 0)
-                System.out.print("/");
-            if(countDeletes % 2000 == 0)
-                System.out.println("");
+        private static String command = null;
+        private static long started = 0;
 
-            int affected_rows = 0;
+        /**
+         * Set for the threads of a --serve client running next to the command being measured: they record
+         * nothing and leave its metrics alone
+         */
+        static final InheritableThreadLocal<Boolean> skipped = new InheritableThreadLocal<>();
+
+        static void start(String name) {
+            if (skipped.get() != null)
+                return;
+            counters.clear();
+            timers.clear();
+            gauges.clear();
+            command = name;
+            started = System.nanoTime();
+        }
 
-            // delete all files from current directory
-            ps_deleteFilesFromDirectory.setInt(1, dirId);
-            ps_deleteFilesFromDirectory.executeUpdate();
+        static void count(String name, long delta) {
+            if (skipped.get() != null)
+                return;
+            java.util.concurrent.atomic.AtomicLong counter = counters.get(name);
+            if (counter == null) {
+                counters.putIfAbsent(name, new java.util.concurrent.atomic.AtomicLong());
+                counter = counters.get(name);
+            }
+            counter.addAndGet(delta);
+        }
 
-            // recursively delete the rest of the directories
-            ps_findDirectoryChildren.setInt(1, dirId);
+        /**
+         * Records the time elapsed since startNanos, taken with System.nanoTime()
+         */
+        static void time(String name, long startNanos) {
+            timeNanos(name, System.nanoTime() - startNanos);
+        }
 
-            class Dir {
-                public int _id;
-                public String _name;
+        static void timeNanos(String name, long nanos) {
+            if (skipped.get() != null)
+                return;
+            Histogram h = timers.get(name);
+            if (h == null) {
+                timers.putIfAbsent(name, new Histogram());
+                h = timers.get(name);
+            }
+            h.add(nanos);
+        }
 
-                public Dir(int id, String name) {
-                    _id = id;
-                    _name = name;
-                }
+        static void gauge(String name, long value) {
+            if (skipped.get() != null)
+                return;
+            Gauge g = gauges.get(name);
+            if (g == null) {
+                gauges.putIfAbsent(name, new Gauge());
+                g = gauges.get(name);
             }
+            g.set(value);
+        }
 
-            Vector<Dir> v = new Vector<Dir>();
+        static long counter(String name) {
+            java.util.concurrent.atomic.AtomicLong counter = counters.get(name);
+            return counter == null ? 0 : counter.get();
+        }
 
-            try (ResultSet rs = ps_findDirectoryChildren.executeQuery()) {
-                while (rs.next()) {
-                    v.add(new Dir(rs.getInt(1), rs.getString(2)));
-                }
+        private static String quote(String s) {
+            return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
 
-            } catch (SQLException ex) {
-                System.out.println(ex.toString());
-                throw ex;
-            }
+        static String toJson() {
+
+            double seconds = Math.max((System.nanoTime() - started) / 1e9, 1e-9);
 
-            for (Dir d : v) {
-                deleteDirRecursively(d._id, d._name);
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"command\": ").append(quote(command)).append(", \"timestamp\": ").append(System.currentTimeMillis())
+                    .append(", \"durationMs\": ").append((long) (seconds * 1000));
+
+            sb.append(", \"counters\": {");
+            String sep = "";
+            for (Map.Entry<String, java.util.concurrent.atomic.AtomicLong> e : new TreeMap<>(counters).entrySet()) {
+                sb.append(sep).append(quote(e.getKey())).append(": ").append(e.getValue().get());
+                sep = ", ";
             }
 
-            // delete all the children
-            ps_deleteDirectoryChildren.setInt(1, dirId);
-            ps_deleteDirectoryChildren.executeUpdate();
+            sb.append("}, \"rates\": {");
+            sep = "";
+            for (Map.Entry<String, java.util.concurrent.atomic.AtomicLong> e : new TreeMap<>(counters).entrySet()) {
+                sb.append(sep).append(quote(e.getKey() + "PerSecond")).append(": ").append((long) (e.getValue().get() / seconds));
+                sep = ", ";
+            }
 
+            sb.append("}, \"timers\": {");
+            sep = "";
+            for (Map.Entry<String, Histogram> e : new TreeMap<>(timers).entrySet()) {
+                Histogram h = e.getValue();
+                sb.append(sep).append(quote(e.getKey())).append(": {\"count\": ").append(h.count.get())
+                        .append(", \"totalMs\": ").append(h.totalNanos.get() / 1000000)
+                        .append(", \"maxMs\": ").append(h.maxNanos.get() / 1000000.0)
+                        .append(", \"p50Ms\": ").append(h.quantileMs(0.5))
+                        .append(", \"p99Ms\": ").append(h.quantileMs(0.99))
+                        .append(", \"bucketsUs\": {");
+                String bsep = "";
+                for (int i = 0; i < h.buckets.length(); i++) {
+                    if (h.buckets.get(i) > 0) {
+                        sb.append(bsep).append("\"").append(1L << i).append("\": ").append(h.buckets.get(i));
+                        bsep = ", ";
+                    }
+                }
+                sb.append("}}");
+                sep = ", ";
+            }
 
-            // delete the directory
-            ps_deleteDirectory.setInt(1, dirId);
-            affected_rows = ps_deleteDirectory.executeUpdate();
+            sb.append("}, \"gauges\": {");
+            sep = "";
+            for (Map.Entry<String, Gauge> e : new TreeMap<>(gauges).entrySet()) {
+                Gauge g = e.getValue();
+                synchronized (g) {
+                    sb.append(sep).append(quote(e.getKey())).append(": {\"last\": ").append(g.last).append(", \"max\": ").append(g.max)
+                            .append(", \"avg\": ").append(g.samples > 0 ? g.sum / g.samples : 0).append("}");
+                }
+                sep = ", ";
+            }
 
-            if (affected_rows != 1)
-                throw new SQLException("Something went wrong while deleting directories.");
+            return sb.append("}}").toString();
         }
 
         /**
-         * Returns the parent, if any
-         *
-         * @param p
-         * @return
-         * @throws IOException
-         * @throws SQLException
+         * Appends the metrics of the command to the metrics file ("-" for the console); nothing when none was recorded
          */
+        static void dump() {
 
-        public int findAndDeleteDirAndChildren(Path p) throws IOException, SQLException {
-
-            int parent = -1;
-            try {
-                String path = p.toFile().getCanonicalPath();
-
-                ResultSet rs = null;
-
-                int dir = -1;
-                String dirName = "";
-
-                // find the directory to delete
-                ps_findDirectory.setString(1, path);
-                rs = ps_findDirectory.executeQuery();
-                while (rs.next()) {
-                    dir = rs.getInt(1);
-                    dirName = rs.getString(2);
+            if (skipped.get() != null || command == null || file == null || (counters.isEmpty() && timers.isEmpty()))
+                return;
 
-                    assert (parent == -1); // only one directory ;)
-                    parent = rs.getInt(3);
-                    if (rs.wasNull())
-                        parent = -1;
+            String json = toJson();
 
-                    // recursively delete the rest of the directories
-                    deleteDirRecursively(dir, dirName);
-                }
+            if (file.equals("-")) {
+                System.out.println(json);
+                return;
+            }
 
-            } catch (SQLException e) {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), java.nio.charset.StandardCharsets.UTF_8)) {
+                w.write(json);
+                w.write(System.lineSeparator());
+            } catch (IOException e) {
                 System.out.println(e.toString());
             }
-
-            return parent;
         }
-
     }
 
     /**
-     * Indexes a directory and all its subdirectories
+     * Single console line with the progress of a long command, redrawn at most once a second,
+     * with an ETA when the amount of work is known in advance.
      */
-    private static class IndexDirectoryAction {
-
-        private int nextDirID = 0;
-
-        private long checkCommitFilesTime = 0;
+    private static class Progress {
 
-        private static int getNextDirID() throws SQLException {
-            int nextDirID = 0;
-            Statement s = c.createStatement();
-            ResultSet rs = s.executeQuery("SELECT MAX(ID) From Directories");
-            if (rs.next())
-                nextDirID = rs.getInt(1) + 1;
+        private final String what;
+        private final long expected;
+        private final long started = System.nanoTime();
+        private long lastPrint = started;
+        private boolean printed = false;
 
-            return nextDirID;
+        Progress(String what, long expected) {
+            this.what = what;
+            this.expected = expected;
         }
 
-        private void checkCommitFiles(PreparedStatement insert, long batchCount) throws SQLException {
+        void update(long done) {
 
-            if (checkCommitFilesTime == 0)
-                checkCommitFilesTime = System.currentTimeMillis();
+            // a shard's output is read line by line by the parent process
+            if (ShardAction.CHILD)
+                return;
 
-            if (batchCount % 200 == 0) {
-                insert.executeBatch();
-                System.out.print("=");
-            }
+            long now = System.nanoTime();
+            if (now - lastPrint < 1000000000L)
+                return;
+            lastPrint = now;
+
+            double seconds = (now - started) / 1e9;
+            long rate = (long) (done / seconds);
 
-            if (batchCount % 2000 == 0) {
+            String line = "\r" + done + (expected > 0 ? "/" + expected : "") + " " + what + ", " + rate + "/s";
+            if (expected > done && rate > 0)
+                line += ", ETA " + (expected - done) / rate + "s";
 
-                c.commit();
+            System.out.print(line + "    ");
+            printed = true;
+        }
 
+        void done() {
+            if (printed)
                 System.out.println("");
-                System.out.println("Processed " + batchCount + " files [" + (System.currentTimeMillis() - checkCommitFilesTime) + "ms].");
+            printed = false;
+        }
+    }
 
-                checkCommitFilesTime = System.currentTimeMillis();
+    /**
+     * Sizes the JDBC batches and transactions of the indexer from what they actually cost. A batch grows while
+     * it executes well under TARGET_BATCH_NANOS and shrinks above it. Transactions are closed about once every
+     * TARGET_COMMIT_NANOS, and never hold more than maxRowsPerCommit rows; that cap shrinks when commits get slow
+     * or the transaction log grows past LOG_LIMIT, and grows back when both stay small.
+     */
+    private static class AdaptiveBatching {
 
-            }
-        }
+        static final long TARGET_BATCH_NANOS = 50000000L;
+        static final long TARGET_COMMIT_NANOS = 1000000000L;
+        static final int MIN_BATCH = 50;
+        static final int MAX_BATCH = 10000;
+        static final long MIN_ROWS_PER_COMMIT = 1000;
+        static final long MAX_ROWS_PER_COMMIT = 1000000;
+        static final long LOG_LIMIT = 64L * 1024 * 1024;
 
-        private long indexDirectory(Path dir, int dirId, int parentID, long batchCount) throws SQLException, IOException {
+        static final Path LOG_DIR = dbDirectory() == null ? null : dbDirectory().resolve("log");
 
-            ps_dirInsert.setInt(1, dirId);
-            ps_dirInsert.setString(2, dir.toFile().getAbsolutePath());
-            if (parentID != -1)
-                ps_dirInsert.setInt(3, parentID);
-            else
-                ps_dirInsert.setNull(3, Types.INTEGER);
-            // otherwise let it be null
+        int batchSize = 200;
+        long maxRowsPerCommit = 20000;
+
+        private int pending = 0;
+        private long uncommitted = 0;
+        private long lastCommit = System.nanoTime();
 
-            ps_dirInsert.executeUpdate();
+        long batches = 0;
+        long commits = 0;
+
+        /**
+         * Counts a row added to one of the batches
+         *
+         * @return true when the batches should be executed
+         */
+        boolean add() {
+            uncommitted++;
+            return ++pending >= batchSize;
+        }
 
-            // for next directory;
-            parentID = nextDirID;
+        void executed(long nanos) {
 
-            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            if (pending == 0)
+                return;
 
-                for (Path p : ds) {
-                    File f = p.toFile();
+            if (nanos > TARGET_BATCH_NANOS)
+                batchSize = Math.max(MIN_BATCH, batchSize / 2);
+            else if (nanos < TARGET_BATCH_NANOS / 4 && pending >= batchSize) // flushes of partial batches say nothing
+                batchSize = Math.min(MAX_BATCH, batchSize * 2);
 
-                    // second condition is to avoid links
-                    if (!f.canRead() || f.getCanonicalPath().compareTo(f.getAbsolutePath()) != 0)
-                        continue;
+            pending = 0;
+            batches++;
+            Metrics.gauge("db.batchSize", batchSize);
+        }
 
-                    if (f.isDirectory()) {
+        boolean commitDue() {
+            return uncommitted >= maxRowsPerCommit || (uncommitted > 0 && System.nanoTime() - lastCommit >= TARGET_COMMIT_NANOS);
+        }
 
-                        // delete if already exists
-                        c.commit();
-                        dda.findAndDeleteDirAndChildren(p);
-                        c.commit();
-                        batchCount = indexDirectory(p, ++nextDirID, parentID, batchCount);
-                    } else if(!f.getName().startsWith(".")){         // does not index hidden files
+        void committed(long nanos) {
 
-                        // add files as references to the directory
+            long log = logSize();
 
-                        ps_insert.setInt(1, dirId);  // file path
-                        ps_insert.setString(2, f.getName());          // file name
-                        ps_insert.setLong(3, f.length());             // file size
-                        ps_insert.setInt(4, f.getName().hashCode());            // hash code of file name
+            if (nanos > TARGET_COMMIT_NANOS / 4 || log > LOG_LIMIT)
+                maxRowsPerCommit = Math.max(MIN_ROWS_PER_COMMIT, maxRowsPerCommit / 2);
+            else if (nanos < TARGET_COMMIT_NANOS / 20 && log < LOG_LIMIT / 4 && uncommitted >= maxRowsPerCommit)
+                maxRowsPerCommit = Math.min(MAX_ROWS_PER_COMMIT, maxRowsPerCommit * 2);
 
-                        ps_insert.addBatch();
-                        checkCommitFiles(ps_insert, ++batchCount);
+            Metrics.gauge("db.rowsPerCommit", uncommitted);
+            Metrics.gauge("db.logBytes", log);
 
-                    }
-                }
+            uncommitted = 0;
+            commits++;
+            lastCommit = System.nanoTime();
+        }
+
+        /**
+         * Size of the Derby transaction log; only a few files, so cheap to read once per commit
+         */
+        private static long logSize() {
+            long size = 0;
+            if (LOG_DIR == null)
+                return size;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(LOG_DIR)) {
+                for (Path p : ds)
+                    size += Files.size(p);
             } catch (IOException e) {
-                System.out.println(e.toString());
+                // no log to look at, the commit latency alone decides
             }
-
-            return batchCount;
+            return size;
         }
+    }
 
+    /**
+     * Maps directory ids to absolute paths and back. In the default layout every row stores its DirPath.
+     * In the compact layout (--prepareDb compact) only the roots do; every other row stores its last segment
+     * in Name, and full paths are rebuilt along ParentID through an LRU cache of the prefixes already resolved.
+     */
+    private static class DirectoryPaths {
 
-        private static PreparedStatement ps_insert = null;
-        private static PreparedStatement ps_dirInsert = null;
+        static final String COMPACT_PATHS = "CompactPaths";
+        static final int CACHE_SIZE = 65536;
 
-        DeleteDirectoryAction dda = new DeleteDirectoryAction();
+        static boolean compact = false;
 
-        static {
-            Connection c = DiskUtility.c;
-            try {
-                ps_insert = c.prepareStatement("INSERT INTO Files(DirectoryRef, FileName, Size, NameHash) VALUES (?, ?, ?, ?)");
-                ps_dirInsert = c.prepareStatement("INSERT INTO Directories (ID, DirPath, ParentID) VALUES(?, ?, ?)");
-            } catch (Exception e) {
-                System.out.println(e.toString());
+        // shared by the server threads running read-only commands
+        private static final Map<Integer, String> cache = Collections.synchronizedMap(new LinkedHashMap<Integer, String>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > CACHE_SIZE;
             }
-        }
+        });
 
-        public void updateDb(String dir) {
+        /**
+         * The statements of one connection: the main one, or the one of a server thread running read-only commands
+         */
+        private static class Statements {
+
+            final PreparedStatement findById;
+            final PreparedStatement findByPath;
+            final PreparedStatement findChild;
+            final PreparedStatement findRoots;
+            final PreparedStatement childrenOf;
+
+            Statements(Connection c) throws SQLException {
+                findById = c.prepareStatement("SELECT DirPath, Name, ParentID FROM Directories WHERE ID=?");
+                findByPath = c.prepareStatement("SELECT ID FROM Directories WHERE DirPath=?");
+                findChild = c.prepareStatement("SELECT ID FROM Directories WHERE ParentID=? AND Name=?");
+                findRoots = c.prepareStatement("SELECT ID, DirPath FROM Directories WHERE ParentID IS NULL");
+                childrenOf = c.prepareStatement("SELECT ID, ParentID, Name, DirPath FROM Directories WHERE ParentID IN (" + idParameters() + ")");
+            }
+        }
 
-            long tm = System.currentTimeMillis();
-            System.out.println("Indexing " + dir);
+        private static final Map<Connection, Statements> statements = new HashMap<>();
 
-            try {
+        private static synchronized Statements statements() throws SQLException {
+            Statements s = statements.get(db());
+            if (s == null)
+                statements.put(db(), s = new Statements(db()));
+            return s;
+        }
 
-                Path p = FileSystems.getDefault().getPath(dir);
+        /**
+         * Called before a connection other than the main one is closed
+         */
+        static synchronized void closed(Connection c) {
+            statements.remove(c);
+        }
 
-                int parentDir = dda.findAndDeleteDirAndChildren(p);
+        /**
+         * Directory ids in the IN list of one subtree query; Derby probes the index once per value,
+         * while a BETWEEN on ids is read as a table scan
+         */
+        static final int IDS_PER_QUERY = 100;
 
-                nextDirID = getNextDirID();
-                long files = indexDirectory(p, nextDirID, parentDir, 0);
+        static {
 
-                ps_insert.executeBatch();
-                c.commit();
+            try {
+                compact = getState(COMPACT_PATHS, 0) == 1;
+            } catch (SQLException e) {
+                System.out.println(e);
+            }
+        }
 
-                System.out.println("");
-                System.out.println("Total files in " + dir + ": " + files + ". [OK]");
+        static String leaf(String path) {
+            return path.substring(path.lastIndexOf(File.separatorChar) + 1);
+        }
 
-            } catch (Exception e) {
-                System.out.print(e.toString());
-            }
+        /**
+         * Ids are reused once the directories are deleted, so whatever was resolved goes away with them
+         */
+        static void forget() {
+            cache.clear();
+        }
 
-            System.out.println("Duration: " + ((double) (System.currentTimeMillis() - tm)) / 1000.0 + "s.");
+        /**
+         * @param dirPath the DirPath column when the caller already has it, null otherwise
+         */
+        static String path(int id, String dirPath) throws SQLException {
+            return dirPath != null ? dirPath : path(id);
         }
-    }
 
-    private static class ListDuplicates {
+        static String path(int id) throws SQLException {
 
-        private static final int DO_NOTHING = 0;
-        private static final int DELETE_FOLDER_RECURSIVE = 7;
-        private static final int IGNORE_FOLDER_RECURSIVE = 8;
+            String path = cache.get(id);
+            if (path != null)
+                return path;
 
-        private static final int DELETE_LEFT = 1;
-        private static final int DELETE_ALL_LEFT = 2;
-        private static final int SKIP_ALL_FILES_FROM_DIRECTORY_LEFT = 3;
+            Statements ps = statements();
 
-        private static final int DELETE_RIGHT = 4;
-        private static final int DELETE_ALL_RIGHT = 5;
-        private static final int SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT = 6;
+            // climb until a cached prefix or a row with its full path, then resolve back down
+            Deque<Integer> ids = new ArrayDeque<>();
+            Deque<String> names = new ArrayDeque<>();
+            int current = id;
 
-        private static final int SKIP_ALL_FILES_FROM_DIRECTORY = 1007;
-        private static final int DELETE_ALL_FROM_DIRECTORY = 1008;
-        private static final int DELETE_ALL_FROM_DIRECTORY_RECURSIVELY = 1009;
-        private static final int IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY = 1010;
+            while (path == null) {
+                ps.findById.setInt(1, current);
+                try (ResultSet rs = ps.findById.executeQuery()) {
+                    if (!rs.next())
+                        return null;
 
-        private void deleteFileAndEmptyDir(String dir, String file) {
-            try {
-                File file_ = new File(dir + File.separator + file);
-                file_.delete();
+                    path = rs.getString(1);
+                    if (path == null) {
+                        ids.push(current);
+                        names.push(rs.getString(2));
+                        current = rs.getInt(3);
+                        if (rs.wasNull())
+                            return null;
+                        path = cache.get(current);
+                    } else {
+                        cache.put(current, path);
+                    }
+                }
+            }
 
-                File dir_ = new File(dir);
-                if (dir_.list().length == 0)
-                    dir_.delete();
-            } catch (Exception ex) {
-                System.out.println(ex.toString());
+            while (!ids.isEmpty()) {
+                path = path.endsWith(File.separator) ? path + names.pop() : path + File.separator + names.pop();
+                cache.put(ids.pop(), path);
             }
-        }
 
-        private boolean fileExists(String dir, String file) {
-            return (new File(dir + File.separator + file)).exists();
+            return path;
         }
 
-        private boolean printOptionsMenu(Integer left_option, Integer right_option) {
-
-            boolean smth_printed = false;
+        /**
+         * @return the id of the directory indexed with this absolute path, or -1
+         */
+        static int find(String path) throws SQLException {
 
-            if (left_option == null || left_option != SKIP_ALL_FILES_FROM_DIRECTORY) {
-                smth_printed = true;
-                System.out.println(DELETE_LEFT + ". Delete file from left");
-                System.out.println(DELETE_ALL_LEFT + ". Delete all files from left directory");
-                System.out.println(SKIP_ALL_FILES_FROM_DIRECTORY_LEFT + ". Ignore all comparisons with left directory");
-            }
+            Statements ps = statements();
 
-            if (right_option == null || right_option != SKIP_ALL_FILES_FROM_DIRECTORY) {
-                smth_printed = true;
-                System.out.println(DELETE_RIGHT + ". Delete file from right");
-                System.out.println(DELETE_ALL_RIGHT + ". Delete all files from right directory");
-                System.out.println(SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT + ". Ignore all comparisons with right directory");
+            ps.findByPath.setString(1, path);
+            try (ResultSet rs = ps.findByPath.executeQuery()) {
+                if (rs.next())
+                    return rs.getInt(1);
             }
 
-            if (smth_printed) {
+            if (!compact)
+                return -1;
 
-                System.out.println(DELETE_FOLDER_RECURSIVE + ". Delete recursive folder...");
-                System.out.println(IGNORE_FOLDER_RECURSIVE + ". Ignore folder...");
-                System.out.println(DO_NOTHING + ". Move to next file (do nothing)");
+            // below the deepest root containing the path, one segment at a time
+            int id = -1;
+            String root = null;
 
+            try (ResultSet rs = ps.findRoots.executeQuery()) {
+                while (rs.next()) {
+                    String p = rs.getString(2);
+                    if (p != null && path.startsWith(subtreeRange(p)[0]) && (root == null || p.length() > root.length())) {
+                        root = p;
+                        id = rs.getInt(1);
+                    }
+                }
             }
-            return smth_printed;
-        }
-
-        public void printDuplicates(long sizeKB, Vector<String> patterns) {
 
-            /**
-             * Always keeps the most recently used folder first for fast access
-             */
-            class FolderActions {
+            if (root == null)
+                return -1;
 
-                class Pair<T1, T2> {
-                    public Pair(T1 t1, T2 t2) {
-                        fst = t1;
-                        snd = t2;
-                    }
+            for (String segment : path.substring(subtreeRange(root)[0].length()).split(java.util.regex.Pattern.quote(File.separator))) {
+                if (segment.isEmpty())
+                    continue;
 
-                    public T1 fst;
-                    public T2 snd;
+                ps.findChild.setInt(1, id);
+                ps.findChild.setString(2, segment);
+                try (ResultSet rs = ps.findChild.executeQuery()) {
+                    if (!rs.next())
+                        return -1;
+                    id = rs.getInt(1);
                 }
+            }
 
-                private LinkedList<Pair<String, Integer>> folderActions = new LinkedList<>();
-
-                public Integer get(String path) {
+            return id;
+        }
 
-                    Integer ret = null;
-                    int idx = 0; // to avoid constant switching between the first and the second
+        /**
+         * @return the parent of the directory, -1 for roots and unknown directories
+         */
+        static int parent(int id) throws SQLException {
 
-                    ListIterator<Pair<String, Integer>> it = folderActions.listIterator();
-                    Pair<String, Integer> p = null;
+            Statements ps = statements();
 
-                    while(it.hasNext()){
-                        p = it.next();
+            ps.findById.setInt(1, id);
+            try (ResultSet rs = ps.findById.executeQuery()) {
+                if (!rs.next())
+                    return -1;
+                int parent = rs.getInt(3);
+                return rs.wasNull() ? -1 : parent;
+            }
+        }
 
-                        if (p.snd == DELETE_ALL_FROM_DIRECTORY_RECURSIVELY && path.startsWith(p.fst)) {
-                            ret = DELETE_ALL_FROM_DIRECTORY;
-                            break;
-                        }
-                        else if (p.snd == IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY && path.startsWith(p.fst)){
-                            ret =  SKIP_ALL_FILES_FROM_DIRECTORY;
-                            break;
-                        } else if (path.equals(p.fst)) {
-                            ret = p.snd;
-                            break;
-                        }
+        /**
+         * Ids, parents and hash codes of the last path segment of a directory and everything below it,
+         * in ascending id order (parents first, a child always has a greater id than its parent).
+         * Read level by level on DirectoryChildIDX, so the cost is that of the subtree only.
+         */
+        static int[][] subtree(int rootId) throws SQLException {
 
-                        idx++;
+            Statements ps = statements();
 
-                    }
+            ps.findById.setInt(1, rootId);
+            String rootName;
+            try (ResultSet rs = ps.findById.executeQuery()) {
+                if (!rs.next())
+                    return new int[][]{new int[0], new int[0], new int[0]};
+                rootName = rs.getString(2) != null ? rs.getString(2) : leaf(rs.getString(1));
+            }
 
-                    if(p != null && idx > 2){
-                        it.remove();
-                        folderActions.addFirst(p);
+            int[] ids = new int[16];
+            int[] parents = new int[16];
+            int[] nameHashes = new int[16];
+            ids[0] = rootId;
+            parents[0] = -1;
+            nameHashes[0] = rootName.hashCode();
+            int n = 1;
+
+            for (int level = 0; level < n; ) {
+                int levelEnd = n;
+
+                for (int from = level; from < levelEnd; from += IDS_PER_QUERY) {
+                    setIds(ps.childrenOf, ids, from, levelEnd);
+
+                    try (ResultSet rs = ps.childrenOf.executeQuery()) {
+                        while (rs.next()) {
+                            if (n == ids.length) {
+                                ids = Arrays.copyOf(ids, n * 2);
+                                parents = Arrays.copyOf(parents, n * 2);
+                                nameHashes = Arrays.copyOf(nameHashes, n * 2);
+                            }
+                            String name = rs.getString(3);
+                            ids[n] = rs.getInt(1);
+                            parents[n] = rs.getInt(2);
+                            nameHashes[n] = (name != null ? name : leaf(rs.getString(4))).hashCode();
+                            n++;
+                        }
                     }
-
-                    return ret;
+                }
+
+                level = levelEnd;
+            }
+
+            // ascending id order, so that the callers can find a directory by binary search
+            long[] sorted = new long[n];
+            for (int i = 0; i < n; i++)
+                sorted[i] = ((long) ids[i] << 32) | i;
+            Arrays.sort(sorted);
+
+            int[][] result = {new int[n], new int[n], new int[n]};
+            for (int k = 0; k < n; k++) {
+                int i = (int) sorted[k];
+                result[0][k] = ids[i];
+                result[1][k] = parents[i];
+                result[2][k] = nameHashes[i];
+            }
+            return result;
+        }
+
+        static String idParameters() {
+            StringBuilder parameters = new StringBuilder("?");
+            for (int i = 1; i < IDS_PER_QUERY; i++)
+                parameters.append(", ?");
+            return parameters.toString();
+        }
+
+        /**
+         * Binds ids[from] up to IDS_PER_QUERY ids before end to a statement prepared with idParameters();
+         * the unused parameters repeat the last id
+         */
+        static void setIds(PreparedStatement ps, int[] ids, int from, int end) throws SQLException {
+            for (int i = 0; i < IDS_PER_QUERY; i++)
+                ps.setInt(i + 1, ids[Math.min(from + i, end - 1)]);
+        }
+    }
+
+    /**
+     * Deletes a directory and all its subdirectories
+     */
+    private static class DeleteDirectoryAction {
+
+        static PreparedStatement ps_findRootsBelow = null;
+        static PreparedStatement ps_deleteSubtreeFiles = null;
+        static PreparedStatement ps_deleteSubtreeDirectories = null;
+        static PreparedStatement ps_deleteFilesFromDirectory = null;
+        static PreparedStatement ps_deleteDirectory = null;
+        static PreparedStatement ps_deleteFilesIn = null;
+        static PreparedStatement ps_deleteDirectoriesIn = null;
+
+        long deletedDirectories = 0;
+        long deletedFiles = 0;
+
+        static {
+
+            try {
+                ps_findRootsBelow = db().prepareStatement("SELECT ID, DirPath FROM Directories WHERE ParentID IS NULL AND DirPath > ? AND DirPath < ?");
+                // every directory below a path has it as prefix, so the whole subtree is a range on the DirPath index
+                ps_deleteSubtreeFiles = db().prepareStatement("DELETE FROM Files WHERE DirectoryRef IN (SELECT ID FROM Directories WHERE DirPath > ? AND DirPath < ?)");
+                ps_deleteSubtreeDirectories = db().prepareStatement("DELETE FROM Directories WHERE DirPath > ? AND DirPath < ?");
+                ps_deleteFilesFromDirectory = db().prepareStatement("DELETE FROM Files WHERE DirectoryRef=?");
+                ps_deleteDirectory = db().prepareStatement("DELETE FROM Directories WHERE ID=?");
+                ps_deleteFilesIn = db().prepareStatement("DELETE FROM Files WHERE DirectoryRef IN (" + DirectoryPaths.idParameters() + ")");
+                ps_deleteDirectoriesIn = db().prepareStatement("DELETE FROM Directories WHERE ID IN (" + DirectoryPaths.idParameters() + ")");
+            } catch (SQLException e) {
+                System.out.println(e);
+            }
+        }
+
+        /**
+         * Deletes the directory, its files and everything below it with a fixed number of statements,
+         * whatever the size or the depth of the subtree.
+         *
+         * @return the number of rows removed
+         */
+        long deleteDirRecursively(int dirId, String dir_name) throws SQLException {
+
+            long t = System.nanoTime();
+
+            long files = 0;
+            long dirs = 0;
+
+            DirectoryPaths.forget();
+
+            if (DirectoryPaths.compact) {
+                // no path prefixes to range on; the subtree is read on the parent index and deleted
+                // IDS_PER_QUERY directories per statement, the greatest ids first so that children go before parents
+                int[] ids = DirectoryPaths.subtree(dirId)[0];
+
+                for (int from = 0; from < ids.length; from += DirectoryPaths.IDS_PER_QUERY) {
+                    DirectoryPaths.setIds(ps_deleteFilesIn, ids, from, ids.length);
+                    ps_deleteFilesIn.addBatch();
+                }
+                files += sum(ps_deleteFilesIn.executeBatch());
+
+                int[] below = Arrays.copyOfRange(ids, 1, ids.length);
+                for (int end = below.length; end > 0; end -= DirectoryPaths.IDS_PER_QUERY) {
+                    DirectoryPaths.setIds(ps_deleteDirectoriesIn, below, Math.max(end - DirectoryPaths.IDS_PER_QUERY, 0), end);
+                    ps_deleteDirectoriesIn.addBatch();
+                }
+                dirs += sum(ps_deleteDirectoriesIn.executeBatch());
+            } else {
+                String[] range = subtreeRange(dir_name);
+                String from = range[0];
+                String to = range[1];
+
+                ps_deleteSubtreeFiles.setString(1, from);
+                ps_deleteSubtreeFiles.setString(2, to);
+                files += ps_deleteSubtreeFiles.executeUpdate();
+
+                ps_deleteFilesFromDirectory.setInt(1, dirId);
+                files += ps_deleteFilesFromDirectory.executeUpdate();
+
+                ps_deleteSubtreeDirectories.setString(1, from);
+                ps_deleteSubtreeDirectories.setString(2, to);
+                dirs += ps_deleteSubtreeDirectories.executeUpdate();
+            }
+
+            // delete the directory
+            ps_deleteDirectory.setInt(1, dirId);
+            int affected_rows = ps_deleteDirectory.executeUpdate();
+
+            if (affected_rows != 1)
+                throw new SQLException("Something went wrong while deleting directories.");
+
+            dirs += affected_rows;
+
+            deletedFiles += files;
+            deletedDirectories += dirs;
+
+            Metrics.time("db.deleteSubtree", t);
+            Metrics.count("deleted.files", files);
+            Metrics.count("deleted.directories", dirs);
+
+            return files + dirs;
+        }
+
+        private static long sum(int[] counts) {
+            long total = 0;
+            for (int count : counts)
+                total += Math.max(count, 0);
+            return total;
+        }
+
+        /**
+         * Deletes what was indexed below a path which is not indexed itself, e.g. a subdirectory indexed on its own
+         * before its parent
+         */
+        long deleteBelow(String path) throws SQLException {
+
+            String[] range = subtreeRange(path);
+
+            if (DirectoryPaths.compact) {
+                // only the roots keep their path; whatever was indexed on its own below this one is a root
+                Map<Integer, String> roots = new HashMap<>();
+                ps_findRootsBelow.setString(1, range[0]);
+                ps_findRootsBelow.setString(2, range[1]);
+                try (ResultSet rs = ps_findRootsBelow.executeQuery()) {
+                    while (rs.next())
+                        roots.put(rs.getInt(1), rs.getString(2));
+                }
+
+                long rows = 0;
+                for (Map.Entry<Integer, String> e : roots.entrySet())
+                    rows += deleteDirRecursively(e.getKey(), e.getValue());
+                return rows;
+            }
+
+            DirectoryPaths.forget();
+
+            ps_deleteSubtreeFiles.setString(1, range[0]);
+            ps_deleteSubtreeFiles.setString(2, range[1]);
+            long files = ps_deleteSubtreeFiles.executeUpdate();
+
+            ps_deleteSubtreeDirectories.setString(1, range[0]);
+            ps_deleteSubtreeDirectories.setString(2, range[1]);
+            long dirs = ps_deleteSubtreeDirectories.executeUpdate();
+
+            deletedFiles += files;
+            deletedDirectories += dirs;
+
+            return files + dirs;
+        }
+
+        /**
+         * Returns the parent, if any
+         *
+         * @param p
+         * @return
+         * @throws IOException
+         * @throws SQLException
+         */
+
+        public int findAndDeleteDirAndChildren(Path p) throws IOException, SQLException {
+
+            int parent = -1;
+            try {
+                String path = p.toFile().getCanonicalPath();
+
+                // find the directory to delete
+                int dir = DirectoryPaths.find(path);
+
+                if (dir != -1) {
+                    parent = DirectoryPaths.parent(dir);
+
+                    // delete the rest of the directories
+                    deleteDirRecursively(dir, path);
+                }
+
+                if (dir == -1)
+                    deleteBelow(path);
+
+            } catch (SQLException e) {
+                System.out.println(e.toString());
+            }
+
+            return parent;
+        }
+
+    }
+
+    /**
+     * Indexes a directory and all its subdirectories
+     */
+    private static class IndexDirectoryAction {
+
+        /**
+         * Number of crawler threads used by updateDb. 0 means the classic single threaded walk.
+         */
+        static int parallelism = 0;
+
+        /**
+         * Records handed over by the crawler threads to the single database writer
+         */
+        private static class IndexRecord {
+            final int dirId;        // for files, the directory they belong to
+            final int parentId;     // for directories only
+            final String name;      // absolute path for directories, file name for files
+            final long size;
+            final long modTime;
+            final boolean isDir;
+
+            IndexRecord(int dirId, int parentId, String name, long size, long modTime, boolean isDir) {
+                this.dirId = dirId;
+                this.parentId = parentId;
+                this.name = name;
+                this.size = size;
+                this.modTime = modTime;
+                this.isDir = isDir;
+            }
+        }
+
+        private static final IndexRecord END_OF_CRAWL = new IndexRecord(-1, -1, null, 0, 0, false);
+        private static final int QUEUE_CAPACITY = 10000;
+
+        private final java.util.concurrent.atomic.AtomicInteger nextDirID = new java.util.concurrent.atomic.AtomicInteger();
+
+        private Progress progress = new Progress("files", 0);
+
+        private static int getNextDirID() throws SQLException {
+            int nextDirID = 0;
+            Statement s = db().createStatement();
+            ResultSet rs = s.executeQuery("SELECT MAX(ID) From Directories");
+            if (rs.next())
+                nextDirID = rs.getInt(1) + 1;
+
+            return nextDirID;
+        }
+
+        private AdaptiveBatching batching = new AdaptiveBatching();
+
+        /**
+         * Executes the pending directory and file inserts, directories first so the files find their parent
+         */
+        private void flushBatches() throws SQLException {
+            long t = System.nanoTime();
+            ps_dirInsert.executeBatch();
+            ps_insert.executeBatch();
+            long nanos = System.nanoTime() - t;
+            Metrics.timeNanos("db.batch", nanos);
+            batching.executed(nanos);
+        }
+
+        private void discardBatches() {
+            try {
+                ps_dirInsert.clearBatch();
+                ps_insert.clearBatch();
+            } catch (SQLException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        /**
+         * Set while applyChanges runs, so that a burst of watcher events is committed or rolled back as a whole
+         */
+        private boolean oneTransaction = false;
+
+        private void checkCommit() throws SQLException {
+
+            if (oneTransaction || !batching.commitDue())
+                return;
+
+            flushBatches();
+
+            long t = System.nanoTime();
+            db().commit();
+            long nanos = System.nanoTime() - t;
+            Metrics.timeNanos("db.commit", nanos);
+            batching.committed(nanos);
+        }
+
+        private void addedToBatch() throws SQLException {
+            if (batching.add())
+                flushBatches();
+            checkCommit();
+        }
+
+        private void insertDirectory(int dirId, String path, int parentID, long modTime) throws SQLException {
+
+            ps_dirInsert.setInt(1, dirId);
+            if (parentID != -1)
+                ps_dirInsert.setInt(3, parentID);
+            else
+                ps_dirInsert.setNull(3, Types.INTEGER);
+            // otherwise let it be null
+            ps_dirInsert.setLong(4, modTime);
+
+            // compact layout: below a root only the last segment is stored
+            if (DirectoryPaths.compact && parentID != -1) {
+                ps_dirInsert.setNull(2, Types.VARCHAR);
+                ps_dirInsert.setString(5, DirectoryPaths.leaf(path));
+            } else {
+                ps_dirInsert.setString(2, path);
+                ps_dirInsert.setNull(5, Types.VARCHAR);
+            }
+
+            ps_dirInsert.addBatch();
+            Metrics.count("directories", 1);
+            addedToBatch();
+        }
+
+        private long insertFile(int dirId, String name, long size, long modTime, long batchCount) throws SQLException {
+
+            // add files as references to the directory
+
+            ps_insert.setInt(1, dirId);  // file path
+            ps_insert.setString(2, name);          // file name
+            ps_insert.setLong(3, size);             // file size
+            ps_insert.setInt(4, name.hashCode());            // hash code of file name
+            ps_insert.setLong(5, modTime);          // last modified
+
+            ps_insert.addBatch();
+            Metrics.count("files", 1);
+            addedToBatch();
+            progress.update(++batchCount);
+
+            return batchCount;
+        }
+
+        /**
+         * Calls made per entry by the File based checks this traversal replaced:
+         * canRead, getCanonicalPath, isDirectory, length and lastModified
+         */
+        private static final int LEGACY_CALLS_PER_ENTRY = 5;
+
+        private final java.util.concurrent.atomic.AtomicLong attributeReads = new java.util.concurrent.atomic.AtomicLong();
+
+        /**
+         * Reads all the attributes of an entry with a single lstat.
+         *
+         * @return null for links and special files, which are not indexed, or when the entry cannot be read
+         */
+        private BasicFileAttributes readAttributes(Path p) {
+            long t = System.nanoTime();
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                Metrics.time("fs.stat", t);
+                attributeReads.incrementAndGet();
+                return attrs.isSymbolicLink() || attrs.isOther() ? null : attrs;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private long indexDirectory(Path dir, final int dirId, final int parentID, long batchCount) throws SQLException, IOException {
+
+            final long[] count = {batchCount};
+            final long[] dbNanos = {0};
+            final Deque<Integer> dirIds = new ArrayDeque<>();
+            long walkStart = System.nanoTime();
+
+            // the walker does not follow links and hands over the attributes it read for each entry
+            try {
+                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+
+                        attributeReads.incrementAndGet();
+                        long t = System.nanoTime();
+
+                        try {
+                            int id = dirId;
+                            int parent = parentID;
+
+                            // the old index of the whole tree went away with the root, before the walk
+                            if (!dirIds.isEmpty()) {
+                                id = nextDirID.incrementAndGet();
+                                parent = dirIds.peek();
+                            }
+
+                            insertDirectory(id, d.toAbsolutePath().toString(), parent, attrs.lastModifiedTime().toMillis());
+                            dirIds.push(id);
+
+                        } catch (SQLException e) {
+                            throw new IOException(e);
+                        }
+
+                        dbNanos[0] += System.nanoTime() - t;
+
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+
+                        attributeReads.incrementAndGet();
+
+                        String name = f.getFileName().toString();
+
+                        if (attrs.isRegularFile() && !name.startsWith(".")) {         // does not index hidden files
+                            long t = System.nanoTime();
+                            try {
+                                count[0] = insertFile(dirIds.peek(), name, attrs.size(), attrs.lastModifiedTime().toMillis(), count[0]);
+                            } catch (SQLException e) {
+                                throw new IOException(e);
+                            }
+                            dbNanos[0] += System.nanoTime() - t;
+                        }
+
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path f, IOException e) {
+                        System.out.println(e.toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path d, IOException e) {
+                        if (e != null)
+                            System.out.println(e.toString());
+                        dirIds.pop();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                if (e.getCause() instanceof SQLException)
+                    throw (SQLException) e.getCause();
+                System.out.println(e.toString());
+            }
+
+            // listing and stat happen inside the walker, so they are what is left of the walk after the database work
+            Metrics.timeNanos("fs.walk", System.nanoTime() - walkStart - dbNanos[0]);
+            Metrics.timeNanos("db.walk", dbNanos[0]);
+
+            return count[0];
+        }
+
+        /**
+         * Lists one directory on a fork-join worker and forks a sub task for every subdirectory.
+         * Never touches the database; all the records go through the queue to the writer.
+         */
+        private class CrawlTask extends java.util.concurrent.RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final Path dir;
+            private final int dirId;
+
+            CrawlTask(Path dir, int dirId) {
+                this.dir = dir;
+                this.dirId = dirId;
+            }
+
+            @Override
+            protected void compute() {
+
+                List<CrawlTask> subTasks = new ArrayList<>();
+                List<Path> entries = new ArrayList<>();
+
+                try {
+                    long t = System.nanoTime();
+                    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                        for (Path p : ds)
+                            entries.add(p);
+                    }
+                    Metrics.time("fs.list", t);
+
+                    for (Path p : entries) {
+                        BasicFileAttributes attrs = readAttributes(p);
+
+                        if (attrs == null)
+                            continue;
+
+                        if (attrs.isDirectory()) {
+                            // the id is taken before queuing the directory so its files always come after it
+                            int subDirId = nextDirID.incrementAndGet();
+                            queue.put(new IndexRecord(subDirId, dirId, p.toAbsolutePath().toString(), 0, attrs.lastModifiedTime().toMillis(), true));
+                            subTasks.add(new CrawlTask(p, subDirId));
+                        } else if (!p.getFileName().toString().startsWith(".")) {
+                            queue.put(new IndexRecord(dirId, -1, p.getFileName().toString(), attrs.size(), attrs.lastModifiedTime().toMillis(), false));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.toString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                invokeAll(subTasks);
+            }
+        }
+
+        private java.util.concurrent.BlockingQueue<IndexRecord> queue = null;
+
+        /**
+         * Crawls the tree with a fork-join pool while the current thread, which owns the connection,
+         * drains the queue into ps_dirInsert / ps_insert and keeps the usual commit cadence.
+         */
+        private long indexDirectoryParallel(final Path dir, int dirId, int parentID) throws SQLException, IOException, InterruptedException {
+
+            queue = new java.util.concurrent.ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+            BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+            insertDirectory(dirId, dir.toAbsolutePath().toString(), parentID, attrs.lastModifiedTime().toMillis());
+
+            final java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(parallelism);
+            final CrawlTask root = new CrawlTask(dir, dirId);
+
+            Thread crawler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pool.invoke(root);
+                    } catch (Exception e) {
+                        System.out.println(e.toString());
+                    } finally {
+                        try {
+                            queue.put(END_OF_CRAWL);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, "DiskUtility-crawler");
+
+            crawler.start();
+
+            long batchCount = 0;
+
+            try {
+                IndexRecord r;
+                long records = 0;
+                while ((r = queue.take()) != END_OF_CRAWL) {
+                    if (++records % 100 == 0)
+                        Metrics.gauge("queue.depth", queue.size());
+                    if (r.isDir) {
+                        insertDirectory(r.dirId, r.name, r.parentId, r.modTime);
+                    } else {
+                        batchCount = insertFile(r.dirId, r.name, r.size, r.modTime, batchCount);
+                    }
+                }
+            } finally {
+                // on errors, keep draining so that blocked crawlers can see the pool shutting down
+                pool.shutdownNow();
+                while (crawler.isAlive()) {
+                    queue.clear();
+                    crawler.join(100);
+                }
+                queue = null;
+            }
+
+            return batchCount;
+        }
+
+
+        private static PreparedStatement ps_insert = null;
+        private static PreparedStatement ps_dirInsert = null;
+        private static PreparedStatement ps_findDirectory = null;
+        private static PreparedStatement ps_listDirectoryChildren = null;
+        private static PreparedStatement ps_listDirectoryFiles = null;
+        private static PreparedStatement ps_fileUpdate = null;
+        private static PreparedStatement ps_fileDelete = null;
+        private static PreparedStatement ps_dirUpdate = null;
+        private static PreparedStatement ps_findTotals = null;
+
+        DeleteDirectoryAction dda = new DeleteDirectoryAction();
+        SubtreeTotalsAction totals = new SubtreeTotalsAction();
+
+        static {
+            try {
+                ps_insert = db().prepareStatement("INSERT INTO Files(DirectoryRef, FileName, Size, NameHash, ModTime) VALUES (?, ?, ?, ?, ?)");
+                ps_dirInsert = db().prepareStatement("INSERT INTO Directories (ID, DirPath, ParentID, ModTime, Name) VALUES(?, ?, ?, ?, ?)");
+                ps_findDirectory = db().prepareStatement("SELECT ID, ModTime FROM Directories WHERE ID=?");
+                ps_listDirectoryChildren = db().prepareStatement("SELECT ID, DirPath, ModTime, Name FROM Directories WHERE ParentID=?");
+                ps_listDirectoryFiles = db().prepareStatement("SELECT ID, FileName, Size, ModTime FROM Files WHERE DirectoryRef=?");
+                // content changed, so the hashes are not valid anymore
+                ps_fileUpdate = db().prepareStatement("UPDATE Files SET Size=?, ModTime=?, PartialHash=NULL, ContentHash=NULL WHERE ID=?");
+                ps_fileDelete = db().prepareStatement("DELETE FROM Files WHERE ID=?");
+                ps_dirUpdate = db().prepareStatement("UPDATE Directories SET ModTime=? WHERE ID=?");
+                ps_findTotals = db().prepareStatement("SELECT TotalFiles, TotalDirs FROM Directories WHERE ID=?");
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        private final Set<Integer> dirtyDirs = new HashSet<>();
+        private final List<String> newDirs = new ArrayList<>();
+
+        private Progress directoryProgress = new Progress("directories", 0);
+
+        private long dirsListed = 0;
+        private long dirsSkipped = 0;
+        private long filesUpdated = 0;
+        private long filesDeleted = 0;
+
+        private static long getModTime(ResultSet rs, int column) throws SQLException {
+            long modTime = rs.getLong(column);
+            return rs.wasNull() ? -1 : modTime;
+        }
+
+        /**
+         * Brings an already indexed directory up to date. A directory whose mtime did not change has the same
+         * entries as when it was indexed, so it is not listed again; only its known subdirectories are visited,
+         * because changes deeper in the tree do not show in the parent's mtime.
+         *
+         * @param recursive false to list only this directory, whatever its mtime, and leave its known subdirectories alone
+         */
+        private long refreshDirectory(Path dir, int dirId, long storedModTime, long batchCount, boolean recursive) throws SQLException, IOException {
+
+            BasicFileAttributes dirAttrs = readAttributes(dir);
+
+            if (dirAttrs == null || !dirAttrs.isDirectory()) {
+                // gone
+                dda.deleteDirRecursively(dirId, dir.toAbsolutePath().toString());
+                return batchCount;
+            }
+
+            long modTime = dirAttrs.lastModifiedTime().toMillis();
+
+            class Known {
+                final int id;
+                final long size;
+                final long modTime;
+
+                Known(int id, long size, long modTime) {
+                    this.id = id;
+                    this.size = size;
+                    this.modTime = modTime;
+                }
+            }
+
+            Map<String, Known> subDirs = new HashMap<>();
+
+            ps_listDirectoryChildren.setInt(1, dirId);
+            try (ResultSet rs = ps_listDirectoryChildren.executeQuery()) {
+                while (rs.next()) {
+                    String path = rs.getString(2);
+                    if (path == null)
+                        path = dir.resolve(rs.getString(4)).toAbsolutePath().toString();
+                    subDirs.put(path, new Known(rs.getInt(1), 0, getModTime(rs, 3)));
+                }
+            }
+
+            if (modTime == storedModTime && recursive) {
+
+                dirsSkipped++;
+                directoryProgress.update(dirsListed + dirsSkipped);
+
+                for (Map.Entry<String, Known> e : subDirs.entrySet())
+                    batchCount = refreshDirectory(Paths.get(e.getKey()), e.getValue().id, e.getValue().modTime, batchCount, true);
+
+                return batchCount;
+            }
+
+            dirsListed++;
+            dirtyDirs.add(dirId);
+            directoryProgress.update(dirsListed + dirsSkipped);
+
+            Map<String, Known> files = new HashMap<>();
+
+            ps_listDirectoryFiles.setInt(1, dirId);
+            try (ResultSet rs = ps_listDirectoryFiles.executeQuery()) {
+                while (rs.next())
+                    files.put(rs.getString(2), new Known(rs.getInt(1), rs.getLong(3), getModTime(rs, 4)));
+            }
+
+            List<Path> entries = new ArrayList<>();
+
+            try {
+                long t = System.nanoTime();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                    for (Path p : ds)
+                        entries.add(p);
+                }
+                Metrics.time("fs.list", t);
+
+                for (Path p : entries) {
+                    BasicFileAttributes attrs = readAttributes(p);
+
+                    if (attrs == null)
+                        continue;
+
+                    String name = p.getFileName().toString();
+
+                    if (attrs.isDirectory()) {
+
+                        Known known = subDirs.remove(p.toAbsolutePath().toString());
+
+                        if (known != null) {
+                            if (recursive)
+                                batchCount = refreshDirectory(p, known.id, known.modTime, batchCount, true);
+                        } else {
+                            // delete if already exists
+                            flushBatches();
+                            dda.findAndDeleteDirAndChildren(p);
+                            batchCount = indexDirectory(p, nextDirID.incrementAndGet(), dirId, batchCount);
+                            newDirs.add(p.toAbsolutePath().toString());
+                        }
+                    } else if (!name.startsWith(".")) {         // does not index hidden files
+
+                        Known known = files.remove(name);
+                        long size = attrs.size();
+                        long fileModTime = attrs.lastModifiedTime().toMillis();
+
+                        if (known == null) {
+                            batchCount = insertFile(dirId, name, size, fileModTime, batchCount);
+                        } else if (known.size != size || known.modTime != fileModTime) {
+                            ps_fileUpdate.setLong(1, size);
+                            ps_fileUpdate.setLong(2, fileModTime);
+                            ps_fileUpdate.setInt(3, known.id);
+                            ps_fileUpdate.addBatch();
+                            filesUpdated++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e.toString());
+                return batchCount; // keep the old entries and the old mtime, next run tries again
+            }
+
+            // what is left was not found on disk anymore
+            for (Known known : files.values()) {
+                ps_fileDelete.setInt(1, known.id);
+                ps_fileDelete.addBatch();
+                filesDeleted++;
+            }
+
+            for (Map.Entry<String, Known> e : subDirs.entrySet())
+                dda.deleteDirRecursively(e.getValue().id, e.getKey());
+
+            ps_dirUpdate.setLong(1, modTime);
+            ps_dirUpdate.setInt(2, dirId);
+            ps_dirUpdate.executeUpdate();
+
+            ps_fileUpdate.executeBatch();
+            ps_fileDelete.executeBatch();
+
+            if (dirsListed % 100 == 0 && !oneTransaction)
+                db().commit();
+
+            return batchCount;
+        }
+
+        /**
+         * Incremental update: applies only the changes found since the directory was last indexed.
+         * Falls back to a full update for directories which are not in the database yet.
+         */
+        public void refreshDb(String dir) {
+
+            long tm = System.currentTimeMillis();
+
+            try {
+
+                Path p = FileSystems.getDefault().getPath(dir);
+
+                int dirId = -1;
+                long storedModTime = -1;
+
+                ps_findDirectory.setInt(1, DirectoryPaths.find(p.toFile().getCanonicalPath()));
+                try (ResultSet rs = ps_findDirectory.executeQuery()) {
+                    if (rs.next()) {
+                        dirId = rs.getInt(1);
+                        storedModTime = getModTime(rs, 2);
+                    }
+                }
+
+                if (dirId == -1) {
+                    updateDb(dir);
+                    return;
+                }
+
+                System.out.println("Refreshing " + dir);
+
+                long expected = 0;
+                ps_findTotals.setInt(1, dirId);
+                try (ResultSet rs = ps_findTotals.executeQuery()) {
+                    if (rs.next())
+                        expected = rs.getLong(2) + 1;
+                }
+                directoryProgress = new Progress("directories", expected);
+
+                nextDirID.set(getNextDirID() - 1);
+                dirsListed = dirsSkipped = filesUpdated = filesDeleted = 0;
+                attributeReads.set(0);
+                dirtyDirs.clear();
+                newDirs.clear();
+
+                long files = refreshDirectory(p, dirId, storedModTime, 0, true);
+
+                flushBatches();
+
+                for (String newDir : newDirs)
+                    totals.rollUp(newDir, false);
+                totals.recompute(dirtyDirs);
+
+                db().commit();
+
+                directoryProgress.done();
+                System.out.println("Refreshed " + dir + ": " + dirsListed + " directories listed, " + dirsSkipped + " unchanged, " +
+                        files + " files added, " + filesUpdated + " updated, " + filesDeleted + " deleted. [OK]");
+
+            } catch (Exception e) {
+                discardBatches();
+                System.out.print(e.toString());
+            }
+
+            System.out.println("Duration: " + ((double) (System.currentTimeMillis() - tm)) / 1000.0 + "s.");
+            printAttributeReads();
+        }
+
+        long watchedFilesAdded = 0;
+
+        /**
+         * Applies what a watcher saw, in one transaction: every directory in dirs is listed again without
+         * descending into its known subdirectories, every one in subtrees is refreshed as by --refreshDb.
+         * Directories which are not indexed are left to the listing of their parent.
+         *
+         * @return the directories indexed for the first time
+         */
+        public List<String> applyChanges(Collection<Path> dirs, Collection<Path> subtrees) throws SQLException, IOException {
+
+            nextDirID.set(getNextDirID() - 1);
+            dirsListed = dirsSkipped = filesUpdated = filesDeleted = 0;
+            dirtyDirs.clear();
+            newDirs.clear();
+
+            // no progress lines between the event reports, unless a single burst takes long
+            progress = new Progress("files", 0);
+            directoryProgress = new Progress("directories", 0);
+
+            long files = 0;
+
+            oneTransaction = true;
+            try {
+                for (Path dir : subtrees)
+                    files = refreshKnownDirectory(dir, files, true);
+                for (Path dir : dirs)
+                    files = refreshKnownDirectory(dir, files, false);
+
+                flushBatches();
+
+                for (String newDir : newDirs)
+                    totals.rollUp(newDir, false);
+                totals.recompute(dirtyDirs);
+
+                db().commit();
+
+            } catch (SQLException | IOException e) {
+                discardBatches();
+                db().rollback();
+                throw e;
+            } finally {
+                oneTransaction = false;
+            }
+
+            watchedFilesAdded = files;
+            return new ArrayList<>(newDirs);
+        }
+
+        private long refreshKnownDirectory(Path dir, long batchCount, boolean recursive) throws SQLException, IOException {
+
+            int dirId;
+            long storedModTime;
+
+            ps_findDirectory.setInt(1, DirectoryPaths.find(dir.toString()));
+            try (ResultSet rs = ps_findDirectory.executeQuery()) {
+                if (!rs.next())
+                    return batchCount;
+                dirId = rs.getInt(1);
+                storedModTime = getModTime(rs, 2);
+            }
+
+            return refreshDirectory(dir, dirId, storedModTime, batchCount, recursive);
+        }
+
+        private void printAttributeReads() {
+            long reads = attributeReads.getAndSet(0);
+            System.out.println("Attribute reads: " + reads + " (~" + reads * (LEGACY_CALLS_PER_ENTRY - 1) + " file system calls saved).");
+        }
+
+        public void updateDb(String dir) {
+
+            long tm = System.currentTimeMillis();
+            System.out.println("Indexing " + dir + (parallelism > 0 ? " with " + parallelism + " crawler threads" : ""));
+
+            long files = 0;
+
+            try {
+
+                Path p = FileSystems.getDefault().getPath(dir);
+
+                // the previous index of the directory tells how much work is ahead
+                long expected = 0;
+                ps_findTotals.setInt(1, DirectoryPaths.find(p.toAbsolutePath().toString()));
+                try (ResultSet rs = ps_findTotals.executeQuery()) {
+                    if (rs.next())
+                        expected = rs.getLong(1);
+                }
+                progress = new Progress("files", expected);
+
+                dda.deletedDirectories = dda.deletedFiles = 0;
+                int parentDir = dda.findAndDeleteDirAndChildren(p);
+                if (dda.deletedDirectories > 0)
+                    System.out.println("Removed " + dda.deletedDirectories + " directories and " + dda.deletedFiles + " files of the previous index.");
+
+                nextDirID.set(getNextDirID());
+                batching.batches = batching.commits = 0;
+
+                if (parallelism > 0)
+                    files = indexDirectoryParallel(p, nextDirID.get(), parentDir);
+                else
+                    files = indexDirectory(p, nextDirID.get(), parentDir, 0);
+
+                flushBatches();
+
+                totals.rollUp(p.toAbsolutePath().toString(), true);
+
+                db().commit();
+
+                progress.done();
+                System.out.println("Total files in " + dir + ": " + files + ". [OK]");
+                System.out.println("Batches: " + batching.batches + " (last " + batching.batchSize + " rows), commits: " + batching.commits +
+                        " (up to " + batching.maxRowsPerCommit + " rows).");
+
+            } catch (Exception e) {
+                discardBatches();
+                System.out.print(e.toString());
+            }
+
+            long duration = System.currentTimeMillis() - tm;
+            System.out.println("Duration: " + ((double) duration) / 1000.0 + "s.");
+            System.out.println("Throughput: " + (files * 1000) / Math.max(duration, 1) + " files/s.");
+            printAttributeReads();
+        }
+    }
+
+    /**
+     * Keeps the index of a few trees current from file system events instead of crawling them again. Events are
+     * coalesced per directory; once a burst is over, only the directories they came from are listed again, all in
+     * one transaction. When the event queue overflows, the subtree it belonged to is refreshed as by --refreshDb.
+     */
+    private static class WatchAction {
+
+        static final long QUIET_MILLIS = 500;        // a burst is applied once no event came for that long
+        static final long MAX_DELAY_MILLIS = 5000;   // or once its first event is that old
+
+        private final IndexDirectoryAction ida = new IndexDirectoryAction();
+        private final WatchService watcher;
+        private final Map<WatchKey, Path> keys = new HashMap<>();
+
+        private final Set<Path> changed = new HashSet<>();
+        private final Set<Path> overflowed = new HashSet<>();
+
+        WatchAction() throws IOException {
+            watcher = FileSystems.getDefault().newWatchService();
+        }
+
+        /**
+         * Watches dir and every directory below it
+         */
+        private void register(Path dir) {
+            try {
+                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                        WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        keys.put(key, d);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path f, IOException e) {
+                        System.out.println(e.toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        public void run(Vector<String> dirs) throws IOException, InterruptedException {
+
+            for (String dir : dirs) {
+                Path p = Paths.get(dir).toAbsolutePath();
+                ida.refreshDb(p.toString());
+                register(p);
+            }
+            new TrigramIndexAction().update();
+
+            System.out.println("Watching " + keys.size() + " directories. Ctrl+C to stop.");
+
+            long burstStart = 0;
+
+            while (!keys.isEmpty()) {
+
+                boolean pending = !changed.isEmpty() || !overflowed.isEmpty();
+                WatchKey key;
+
+                // in --serve, the other clients' commands run while this one waits
+                int[] holds = ServerAction.release();
+                try {
+                    key = pending ? watcher.poll(QUIET_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS) : watcher.take();
+                } finally {
+                    ServerAction.reclaim(holds);
+                }
+
+                if (key != null) {
+                    if (!pending)
+                        burstStart = System.currentTimeMillis();
+
+                    Path dir = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Metrics.count("watch.events", 1);
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            overflowed.add(dir);
+                        else
+                            changed.add(dir);
+                    }
+
+                    // deleted directories stop reporting; their parent's listing removes them from the index
+                    if (!key.reset())
+                        keys.remove(key);
+                }
+
+                if (key == null || System.currentTimeMillis() - burstStart > MAX_DELAY_MILLIS)
+                    apply();
+            }
+        }
+
+        private void apply() {
+
+            long t = System.nanoTime();
+
+            // whatever changed inside a subtree to rescan is covered by the rescan
+            Set<Path> dirs = new HashSet<>();
+            for (Path dir : changed) {
+                boolean covered = false;
+                for (Path subtree : overflowed)
+                    covered |= dir.startsWith(subtree);
+                if (!covered)
+                    dirs.add(dir);
+            }
+
+            try {
+                List<String> newDirs = ida.applyChanges(dirs, overflowed);
+
+                for (String newDir : newDirs)
+                    register(Paths.get(newDir));
+                // directories created during the rescan may not be watched yet
+                for (Path subtree : overflowed)
+                    register(subtree);
+
+                if (ida.watchedFilesAdded > 0)
+                    new TrigramIndexAction().update();
+
+                Metrics.time("watch.apply", t);
+                System.out.println(new java.util.Date() + ": " + ida.dirsListed + " directories listed" +
+                        (overflowed.isEmpty() ? "" : ", " + overflowed.size() + " subtrees rescanned") + ", " +
+                        ida.watchedFilesAdded + " files added, " + ida.filesUpdated + " updated, " + ida.filesDeleted + " deleted" +
+                        (newDirs.isEmpty() ? "" : ", " + newDirs.size() + " new directories") +
+                        " [" + (System.nanoTime() - t) / 1000000 + "ms].");
+
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+
+            changed.clear();
+            overflowed.clear();
+        }
+    }
+
+    /**
+     * Keeps the recursive totals of every directory (bytes, files and subdirectories below it) in Directories,
+     * so --usage never has to sum Files.
+     */
+    private static class SubtreeTotalsAction {
+
+        static PreparedStatement ps_subtreeDirectories = null;
+        static PreparedStatement ps_subtreeFiles = null;
+        static PreparedStatement ps_filesIn = null;
+        static PreparedStatement ps_directFiles = null;
+        static PreparedStatement ps_childTotals = null;
+        static PreparedStatement ps_updateTotals = null;
+
+        static {
+
+            try {
+                // the root, then the range of the paths below it: an OR of the two would be read as a table scan
+                ps_subtreeDirectories = db().prepareStatement("SELECT ID, ParentID, DirPath FROM Directories WHERE ID=? " +
+                        "UNION ALL SELECT ID, ParentID, DirPath FROM Directories WHERE DirPath > ? AND DirPath < ? ORDER BY 1");
+                // file by file rather than summed in SQL, for the fingerprints
+                ps_subtreeFiles = db().prepareStatement("SELECT DirectoryRef, Size, NameHash FROM Files WHERE DirectoryRef=? " +
+                        "UNION ALL SELECT f.DirectoryRef, f.Size, f.NameHash FROM Files f, Directories d WHERE f.DirectoryRef = d.ID AND d.DirPath > ? AND d.DirPath < ?");
+                ps_filesIn = db().prepareStatement("SELECT DirectoryRef, Size, NameHash FROM Files WHERE DirectoryRef IN (" + DirectoryPaths.idParameters() + ")");
+                ps_directFiles = db().prepareStatement("SELECT Size, NameHash FROM Files WHERE DirectoryRef=?");
+                ps_childTotals = db().prepareStatement("SELECT TotalSize, TotalFiles, TotalDirs, Fingerprint, DirPath, Name FROM Directories WHERE ParentID=?");
+                ps_updateTotals = db().prepareStatement("UPDATE Directories SET TotalSize=?, TotalFiles=?, TotalDirs=?, Fingerprint=? WHERE ID=?");
+            } catch (SQLException e) {
+                System.out.println(e);
+            }
+        }
+
+        private static final long FILE_ENTRY = 0x46494c45L;
+        private static final long DIRECTORY_ENTRY = 0x44495245L;
+
+        /**
+         * splitmix64 finalizer
+         */
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * The fingerprint of a directory is mixed from the sum of the entries of its files and subdirectories;
+         * a sum does not depend on the order they are read in
+         */
+        static long fileEntry(int nameHash, long size) {
+            return mix(mix(nameHash ^ (FILE_ENTRY << 32)) + size);
+        }
+
+        static long directoryEntry(int nameHash, long fingerprint) {
+            return mix(mix(nameHash ^ (DIRECTORY_ENTRY << 32)) + fingerprint);
+        }
+
+        /**
+         * Rolls up the roots indexed before the totals existed, whose TotalSize is still NULL
+         */
+        static void rollUpMissingRoots() throws SQLException {
+
+            List<String> missing = new ArrayList<>();
+            try (Statement s = db().createStatement();
+                 ResultSet rs = s.executeQuery("SELECT ID, DirPath FROM Directories WHERE ParentID IS NULL AND TotalSize IS NULL")) {
+                while (rs.next())
+                    missing.add(DirectoryPaths.path(rs.getInt(1), rs.getString(2)));
+            }
+
+            if (missing.isEmpty())
+                return;
+
+            SubtreeTotalsAction totals = new SubtreeTotalsAction();
+            for (String root : missing)
+                totals.rollUp(root, false);
+            db().commit();
+        }
+
+        /**
+         * @return the position of id in the first n ascending ids, -1 when it is not there
+         */
+        private static int indexOf(int[] ids, int n, int id) {
+            int i = Arrays.binarySearch(ids, 0, n, id);
+            return i < 0 ? -1 : i;
+        }
+
+        /**
+         * Adds DirectoryRef, Size, NameHash rows to the directories they belong to
+         */
+        private static void addFiles(ResultSet rs, int[] ids, int n, long[] size, long[] files, long[] entries) throws SQLException {
+            while (rs.next()) {
+                int i = indexOf(ids, n, rs.getInt(1));
+                if (i == -1)
+                    continue;
+                long fileSize = rs.getLong(2);
+                size[i] += fileSize;
+                files[i]++;
+                entries[i] += fileEntry(rs.getInt(3), fileSize);
+            }
+        }
+
+        /**
+         * Computes the totals of a whole subtree in memory, children before parents, then updates its ancestors.
+         *
+         * @param withAncestors false when the caller recomputes the ancestors itself
+         */
+        public void rollUp(String path, boolean withAncestors) throws SQLException {
+
+            int rootId = DirectoryPaths.find(path);
+            if (rootId == -1)
+                return;
+            int rootParent = DirectoryPaths.parent(rootId);
+
+            String[] range = subtreeRange(path);
+
+            // in ascending id order, so that a directory is found by binary search whatever the spread of the ids
+            int[] ids = new int[16];
+            int[] parents = new int[16];
+            int[] nameHashes = new int[16];
+            int n = 0;
+
+            if (DirectoryPaths.compact) {
+                int[][] subtree = DirectoryPaths.subtree(rootId);
+                ids = subtree[0];
+                parents = subtree[1];
+                nameHashes = subtree[2];
+                n = ids.length;
+            } else {
+                ps_subtreeDirectories.setInt(1, rootId);
+                ps_subtreeDirectories.setString(2, range[0]);
+                ps_subtreeDirectories.setString(3, range[1]);
+                try (ResultSet rs = ps_subtreeDirectories.executeQuery()) {
+                    while (rs.next()) {
+                        if (n == ids.length) {
+                            ids = Arrays.copyOf(ids, n * 2);
+                            parents = Arrays.copyOf(parents, n * 2);
+                            nameHashes = Arrays.copyOf(nameHashes, n * 2);
+                        }
+                        ids[n] = rs.getInt(1);
+                        parents[n] = rs.getInt(2);
+                        nameHashes[n] = DirectoryPaths.leaf(rs.getString(3)).hashCode();
+                        n++;
+                    }
+                }
+            }
+
+            long[] size = new long[n];
+            long[] files = new long[n];
+            long[] dirs = new long[n];
+            long[] entries = new long[n];
+
+            if (DirectoryPaths.compact) {
+                // on the DirectoryRef index, IDS_PER_QUERY directories at a time
+                for (int from = 0; from < n; from += DirectoryPaths.IDS_PER_QUERY) {
+                    DirectoryPaths.setIds(ps_filesIn, ids, from, n);
+                    try (ResultSet rs = ps_filesIn.executeQuery()) {
+                        addFiles(rs, ids, n, size, files, entries);
+                    }
+                }
+            } else {
+                ps_subtreeFiles.setInt(1, rootId);
+                ps_subtreeFiles.setString(2, range[0]);
+                ps_subtreeFiles.setString(3, range[1]);
+                try (ResultSet rs = ps_subtreeFiles.executeQuery()) {
+                    addFiles(rs, ids, n, size, files, entries);
+                }
+            }
+
+            // breadth first order from the root; walked backwards every child is done before its parent
+            int[] firstChild = new int[n];
+            int[] nextSibling = new int[n];
+            Arrays.fill(firstChild, -1);
+            for (int i = 0; i < n; i++) {
+                int p = ids[i] == rootId ? -1 : indexOf(ids, n, parents[i]);
+                parents[i] = p;
+                if (p != -1) {
+                    nextSibling[i] = firstChild[p];
+                    firstChild[p] = i;
+                }
+            }
+
+            int[] order = new int[n];
+            int head = 0, tail = 0;
+            order[tail++] = indexOf(ids, n, rootId);
+            while (head < tail) {
+                for (int child = firstChild[order[head++]]; child != -1; child = nextSibling[child])
+                    order[tail++] = child;
+            }
+
+            for (int k = tail - 1; k >= 0; k--) {
+                int i = order[k];
+                int p = parents[i];
+                long fingerprint = mix(entries[i]);
+                if (p != -1) {
+                    size[p] += size[i];
+                    files[p] += files[i];
+                    dirs[p] += dirs[i] + 1;
+                    entries[p] += directoryEntry(nameHashes[i], fingerprint);
+                }
+
+                ps_updateTotals.setLong(1, size[i]);
+                ps_updateTotals.setLong(2, files[i]);
+                ps_updateTotals.setLong(3, dirs[i]);
+                ps_updateTotals.setLong(4, fingerprint);
+                ps_updateTotals.setInt(5, ids[i]);
+                ps_updateTotals.addBatch();
+                if (k % 200 == 0)
+                    ps_updateTotals.executeBatch();
+            }
+            ps_updateTotals.executeBatch();
+
+            if (withAncestors && rootParent != -1)
+                recompute(Collections.singleton(rootParent));
+        }
+
+        /**
+         * Recomputes the given directories and all their ancestors from their own files and their children's
+         * totals, deepest first. Cost grows with the number of changed directories, not with the index.
+         */
+        public void recompute(Collection<Integer> dirty) throws SQLException {
+
+            // every directory to recompute, ancestors included
+            Set<Integer> ids = new HashSet<>();
+            Deque<Integer> pending = new ArrayDeque<>(dirty);
+
+            while (!pending.isEmpty()) {
+                int id = pending.pop();
+                if (id == -1 || !ids.add(id))
+                    continue;
+                pending.push(DirectoryPaths.parent(id));
+            }
+
+            // children have greater ids than their parents, so descending ids put the deepest first
+            List<Integer> order = new ArrayList<>(ids);
+            Collections.sort(order, Collections.reverseOrder());
+
+            for (int id : order) {
+
+                long size = 0, files = 0, dirs = 0, entries = 0;
+
+                ps_directFiles.setInt(1, id);
+                try (ResultSet rs = ps_directFiles.executeQuery()) {
+                    while (rs.next()) {
+                        size += rs.getLong(1);
+                        files++;
+                        entries += fileEntry(rs.getInt(2), rs.getLong(1));
+                    }
+                }
+
+                ps_childTotals.setInt(1, id);
+                try (ResultSet rs = ps_childTotals.executeQuery()) {
+                    while (rs.next()) {
+                        size += rs.getLong(1);
+                        files += rs.getLong(2);
+                        dirs += rs.getLong(3) + 1;
+                        String name = rs.getString(6);
+                        entries += directoryEntry((name != null ? name : DirectoryPaths.leaf(rs.getString(5))).hashCode(), rs.getLong(4));
+                    }
+                }
+
+                ps_updateTotals.setLong(1, size);
+                ps_updateTotals.setLong(2, files);
+                ps_updateTotals.setLong(3, dirs);
+                ps_updateTotals.setLong(4, mix(entries));
+                ps_updateTotals.setInt(5, id);
+                ps_updateTotals.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Bulk reads of file contents, grouped by the FileStore the files live on. Every device gets its own number of
+     * concurrent reads, one for spinning disks and four otherwise unless --io says differently, and an optional
+     * bandwidth cap, so hashing keeps a fast disk busy without flooding a slow one shared with other work. On a
+     * device the files are read by directory, then by inode, which on most file systems follows their place on disk.
+     */
+    private static class IoScheduler {
+
+        static final int HDD_THREADS = 1;
+        static final int SSD_THREADS = 4;
+        static final int BUFFER_SIZE = 1024 * 1024;
+        static final int DIRECTORY_CACHE = 65536;
+
+        // a capped device may catch up on this much idle time at full speed
+        static final long BURST_NANOS = 100 * 1000000L;
+
+        interface Task {
+            Path path();
+
+            /**
+             * @return the device number when already known from a stat, -1 otherwise
+             */
+            long device();
+
+            /**
+             * @return the inode number when already known from a stat, 0 otherwise
+             */
+            long inode();
+
+            /**
+             * Reads what it needs, calling device.transferred for every chunk
+             */
+            void run(Device device, java.nio.ByteBuffer buffer) throws IOException;
+
+            void failed(IOException e);
+        }
+
+        static class Limit {
+            final int threads;
+            final long bytesPerSecond;
+
+            Limit(int threads, long bytesPerSecond) {
+                this.threads = threads;
+                this.bytesPerSecond = bytesPerSecond;
+            }
+
+            @Override
+            public String toString() {
+                return threads + (threads == 1 ? " thread" : " threads") + (bytesPerSecond > 0 ? ", at most " + bytesPerSecond / (1024 * 1024) + "MB/s" : "");
+            }
+        }
+
+        /**
+         * Set with --io or diskutility.io, by FileStore name or mount point, "hdd" and "ssd" for the defaults.
+         * Replaced, never changed, so that a server can put back the settings of the commands before.
+         */
+        static Map<String, Limit> limits = fromProperty();
+
+        private static Map<String, Limit> fromProperty() {
+            try {
+                return parse(System.getProperty("diskutility.io", ""), new HashMap<String, Limit>());
+            } catch (IllegalArgumentException e) {
+                System.out.println("diskutility.io: " + e.toString());
+                return new HashMap<>();
+            }
+        }
+
+        /**
+         * Adds the "store=threads[:MB/s]" settings, separated by commas, to the given ones
+         */
+        static Map<String, Limit> parse(String spec, Map<String, Limit> limits) {
+
+            for (String p : spec.split(",")) {
+                if (p.isEmpty())
+                    continue;
+                int eq = p.lastIndexOf('=');
+                if (eq <= 0)
+                    throw new IllegalArgumentException("Expected store=threads[:MB/s]: " + p);
+                String[] v = p.substring(eq + 1).split(":");
+                int threads = Integer.parseInt(v[0]);
+                long mbps = v.length > 1 ? Long.parseLong(v[1]) : 0;
+                if (threads < 1 || mbps < 0)
+                    throw new IllegalArgumentException("Expected at least one thread and a positive bandwidth: " + p);
+                limits.put(p.substring(0, eq), new Limit(threads, mbps * 1024 * 1024));
+            }
+            return limits;
+        }
+
+        /**
+         * The settings as diskutility.io takes them, for the processes started by this one
+         */
+        static String spec() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Limit> e : limits.entrySet()) {
+                if (sb.length() > 0)
+                    sb.append(',');
+                sb.append(e.getKey()).append('=').append(e.getValue().threads);
+                if (e.getValue().bytesPerSecond > 0)
+                    sb.append(':').append(e.getValue().bytesPerSecond / (1024 * 1024));
+            }
+            return sb.toString();
+        }
+
+        static class Device {
+            final FileStore store;
+            final boolean rotational;
+            final String metric;
+
+            private java.util.concurrent.ExecutorService pool = null;
+            private int poolThreads = 0;
+            private Limit limit = null;
+            private long nextFree = 0;
+
+            long files = 0;
+            long bytes = 0;
+            long busyNanos = 0;
+
+            Device(FileStore store) {
+                this.store = store;
+                this.rotational = rotational(store);
+                this.metric = "io." + store.name() + ".bytes";
+            }
+
+            /**
+             * Counts a chunk read, and waits when the device is over its bandwidth cap
+             */
+            void transferred(long n) throws IOException {
+
+                Metrics.count(metric, n);
+
+                long wait;
+                synchronized (this) {
+                    bytes += n;
+                    if (limit.bytesPerSecond <= 0)
+                        return;
+                    long now = System.nanoTime();
+                    nextFree = Math.max(nextFree, now - BURST_NANOS) + n * 1000000000L / limit.bytesPerSecond;
+                    wait = nextFree - now;
+                }
+
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            private java.util.concurrent.ExecutorService pool(int threads) {
+
+                if (pool != null && poolThreads == threads)
+                    return pool;
+
+                if (pool != null)
+                    pool.shutdown();
+
+                final String name = "io " + store;
+                pool = java.util.concurrent.Executors.newFixedThreadPool(threads, new java.util.concurrent.ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                poolThreads = threads;
+                return pool;
+            }
+        }
+
+        private static final Map<FileStore, Device> devices = new LinkedHashMap<>();
+        private static final Map<Long, Device> byNumber = new HashMap<>();
+        private static final Map<String, Device> byDirectory = new LinkedHashMap<String, Device>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+                return size() > DIRECTORY_CACHE;
+            }
+        };
+
+        private static final ThreadLocal<java.nio.ByteBuffer> buffers = new ThreadLocal<java.nio.ByteBuffer>() {
+            @Override
+            protected java.nio.ByteBuffer initialValue() {
+                return java.nio.ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        };
+
+        /**
+         * Linux only: /sys/class/block/sda1 is a partition of sda, which has the queue settings
+         */
+        static boolean rotational(FileStore store) {
+
+            String name = store.name();
+            if (!name.startsWith("/dev/"))
+                return false;
+
+            try {
+                Path block = Paths.get("/sys/class/block", Paths.get(name).toRealPath().getFileName().toString()).toRealPath();
+                Path queue = block.resolve("queue/rotational");
+                if (!Files.exists(queue))
+                    queue = block.getParent().resolve("queue/rotational");
+                return Files.readAllLines(queue).get(0).trim().equals("1");
+            } catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+
+        static Limit limit(FileStore store, boolean rotational) {
+
+            String description = store.toString();
+            for (Map.Entry<String, Limit> e : limits.entrySet()) {
+                if (e.getKey().equals(store.name()) || description.startsWith(e.getKey() + " ("))
+                    return e.getValue();
+            }
+
+            Limit l = limits.get(rotational ? "hdd" : "ssd");
+            return l != null ? l : new Limit(rotational ? HDD_THREADS : SSD_THREADS, 0);
+        }
+
+        private static Device device(FileStore store) {
+            Device d = devices.get(store);
+            if (d == null)
+                devices.put(store, d = new Device(store));
+            return d;
+        }
+
+        /**
+         * One stat per directory at most: what the task knows already, then the directory, then its FileStore
+         */
+        static Device device(Task task) throws IOException {
+
+            Path dir = task.path().getParent();
+            String key = dir.toString();
+
+            Device d = byDirectory.get(key);
+            if (d != null)
+                return d;
+
+            long number = task.device();
+            if (number == -1 && HashCache.unixAttributes) {
+                try {
+                    number = (Long) Files.getAttribute(dir, "unix:dev");
+                } catch (UnsupportedOperationException | IllegalArgumentException noUnixView) {
+                }
+            }
+
+            if (number != -1)
+                d = byNumber.get(number);
+
+            if (d == null) {
+                d = device(Files.getFileStore(dir));
+                if (number != -1)
+                    byNumber.put(number, d);
+            }
+
+            byDirectory.put(key, d);
+            return d;
+        }
+
+        /**
+         * Clears the counters printed by report
+         */
+        static void reset() {
+            for (Device d : devices.values()) {
+                d.files = 0;
+                d.bytes = 0;
+                d.busyNanos = 0;
+            }
+        }
+
+        /**
+         * Runs the tasks, every device with its own threads, and returns when they are all done
+         */
+        static void run(List<? extends Task> tasks) {
+
+            if (tasks.isEmpty())
+                return;
+
+            Map<Device, List<Task>> queues = new LinkedHashMap<>();
+            for (Task t : tasks) {
+                try {
+                    Device d = device(t);
+                    List<Task> q = queues.get(d);
+                    if (q == null)
+                        queues.put(d, q = new ArrayList<>());
+                    q.add(t);
+                } catch (IOException e) {
+                    t.failed(e);
+                }
+            }
+
+            int workers = 0;
+            for (Map.Entry<Device, List<Task>> e : queues.entrySet()) {
+                Device d = e.getKey();
+                d.limit = limit(d.store, d.rotational);
+                workers += Math.min(d.limit.threads, e.getValue().size());
+
+                Collections.sort(e.getValue(), new Comparator<Task>() {
+                    @Override
+                    public int compare(Task a, Task b) {
+                        int c = a.path().getParent().compareTo(b.path().getParent());
+                        if (c == 0)
+                            c = Long.compare(a.inode(), b.inode());
+                        return c != 0 ? c : a.path().compareTo(b.path());
+                    }
+                });
+            }
+
+            final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(workers);
+
+            for (Map.Entry<Device, List<Task>> e : queues.entrySet()) {
+
+                final Device d = e.getKey();
+                final List<Task> queue = e.getValue();
+                final java.util.concurrent.atomic.AtomicInteger next = new java.util.concurrent.atomic.AtomicInteger();
+                final java.util.concurrent.atomic.AtomicInteger running = new java.util.concurrent.atomic.AtomicInteger();
+                final long started = System.nanoTime();
+
+                java.util.concurrent.ExecutorService pool = d.pool(d.limit.threads);
+                int threads = Math.min(d.limit.threads, queue.size());
+                running.set(threads);
+
+                for (int i = 0; i < threads; i++) {
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            java.nio.ByteBuffer buffer = buffers.get();
+                            int n = 0;
+                            for (int i; (i = next.getAndIncrement()) < queue.size(); n++) {
+                                try {
+                                    queue.get(i).run(d, buffer);
+                                } catch (IOException | RuntimeException ex) {
+                                    queue.get(i).failed(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+                                }
+                            }
+                            synchronized (d) {
+                                d.files += n;
+                                // busy while any of its threads is, once per batch
+                                if (running.decrementAndGet() == 0)
+                                    d.busyNanos += System.nanoTime() - started;
+                            }
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Prints and records the throughput of every device used since the last reset
+         */
+        static void report() {
+            for (Device d : devices.values()) {
+                if (d.files == 0)
+                    continue;
+                double seconds = d.busyNanos / 1e9;
+                long mbps = seconds > 0 ? (long) (d.bytes / seconds / (1024 * 1024)) : 0;
+                System.out.println("I/O " + d.store + " [" + (d.rotational ? "hdd" : "ssd") + ", " + d.limit + "]: " + d.files + " files, " +
+                        formatSize(d.bytes) + " in " + String.format("%.1f", seconds) + "s, " + mbps + "MB/s.");
+                Metrics.gauge("io." + d.store.name() + ".MBps", mbps);
+            }
+        }
+    }
+
+    /**
+     * Hashes remembered by file identity (device, inode, size and modification time) instead of by Files row, so
+     * they outlive the rows: a file indexed again, moved or renamed on the same device is not read again. The
+     * least recently used entries go once there are more than diskutility.hashCache.entries of them, and the ones
+     * unused for diskutility.hashCache.days go in any case. Files under diskutility.hashCache.minSize and file
+     * systems without inodes are not cached.
+     */
+    private static class HashCache {
+
+        // smaller files cost a few reads, about what a lookup costs, and would push the large ones out
+        static final long MIN_SIZE = Long.getLong("diskutility.hashCache.minSize", 64 * 1024);
+        static final long MAX_ENTRIES = Long.getLong("diskutility.hashCache.entries", 2000000);
+        static final long MAX_AGE_DAYS = Long.getLong("diskutility.hashCache.days", 365);
+
+        // a hit refreshes LastUsed at most this often, so most hits cost no write
+        static final long TOUCH_INTERVAL = 24 * 3600 * 1000L;
+
+        static final int WRITE_BATCH = 1000;
+        static final int EVICTION_CHUNK = 10000;
+
+        static final String ENTRIES = "HashCacheEntries";
+        static final String HITS = "HashCacheHits";
+        static final String MISSES = "HashCacheMisses";
+
+        private static boolean unixAttributes = true;
+
+        static class Key {
+            final long device;
+            final long inode;
+            final long size;
+            final long modTime;
+
+            Key(long device, long inode, long size, long modTime) {
+                this.device = device;
+                this.inode = inode;
+                this.size = size;
+                this.modTime = modTime;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key))
+                    return false;
+                Key other = (Key) o;
+                return device == other.device && inode == other.inode && size == other.size && modTime == other.modTime;
+            }
+
+            @Override
+            public int hashCode() {
+                return Long.hashCode(inode * 31 + device) ^ Long.hashCode(modTime);
+            }
+        }
+
+        static class Entry {
+            Long partialHash;
+            String contentHash;
+            boolean inTable;
+        }
+
+        // written in batches, and looked up before the table
+        private final Map<Key, Entry> pending = new LinkedHashMap<>();
+        private int touches = 0;
+
+        private final long now = System.currentTimeMillis();
+
+        private PreparedStatement ps_find = null;
+        private PreparedStatement ps_insert = null;
+        private PreparedStatement ps_update = null;
+        private PreparedStatement ps_touch = null;
+
+        private long inserted = 0;
+
+        long hits = 0;
+        long misses = 0;
+
+        /**
+         * One stat for the identity of the file, nanosecond modification time included
+         *
+         * @return null when the file system has no inode numbers
+         */
+        static Key key(Path path) throws IOException {
+
+            if (!unixAttributes)
+                return null;
+
+            try {
+                Map<String, Object> a = Files.readAttributes(path, "unix:dev,ino,size,lastModifiedTime");
+                return new Key((Long) a.get("dev"), (Long) a.get("ino"), (Long) a.get("size"),
+                        ((java.nio.file.attribute.FileTime) a.get("lastModifiedTime")).to(java.util.concurrent.TimeUnit.NANOSECONDS));
+            } catch (UnsupportedOperationException | IllegalArgumentException noUnixView) {
+                unixAttributes = false;
+                return null;
+            }
+        }
+
+        private void prepare() throws SQLException {
+            if (ps_find != null)
+                return;
+            ps_find = db().prepareStatement("SELECT PartialHash, ContentHash, LastUsed FROM HashCache WHERE Device=? AND Inode=? AND Size=? AND ModTime=?");
+            ps_insert = db().prepareStatement("INSERT INTO HashCache (Device, Inode, Size, ModTime, PartialHash, ContentHash, LastUsed) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            ps_update = db().prepareStatement("UPDATE HashCache SET PartialHash=?, ContentHash=?, LastUsed=? WHERE Device=? AND Inode=? AND Size=? AND ModTime=?");
+            ps_touch = db().prepareStatement("UPDATE HashCache SET LastUsed=? WHERE Device=? AND Inode=? AND Size=? AND ModTime=?");
+        }
+
+        private static void setKey(PreparedStatement ps, int from, Key key) throws SQLException {
+            ps.setLong(from, key.device);
+            ps.setLong(from + 1, key.inode);
+            ps.setLong(from + 2, key.size);
+            ps.setLong(from + 3, key.modTime);
+        }
+
+        Entry find(Key key) throws SQLException {
+
+            Entry e = pending.get(key);
+            if (e != null)
+                return e;
+
+            prepare();
+            setKey(ps_find, 1, key);
+
+            try (ResultSet rs = ps_find.executeQuery()) {
+                if (!rs.next())
+                    return null;
+
+                e = new Entry();
+                e.partialHash = rs.getLong(1);
+                if (rs.wasNull())
+                    e.partialHash = null;
+                e.contentHash = rs.getString(2);
+                e.inTable = true;
+
+                if (now - rs.getLong(3) > TOUCH_INTERVAL) {
+                    ps_touch.setLong(1, now);
+                    setKey(ps_touch, 2, key);
+                    ps_touch.addBatch();
+                    if (++touches >= WRITE_BATCH)
+                        write();
+                }
+                return e;
+            }
+        }
+
+        /**
+         * Remembers the hashes of the file, unless it changed while it was read
+         *
+         * @param cached what find returned for the file, null if nothing
+         */
+        void store(Path path, Key key, Entry cached, Long partialHash, String contentHash) throws SQLException, IOException {
+
+            if (!key.equals(key(path)))
+                return;
+
+            Entry e = cached != null ? cached : new Entry();
+            e.partialHash = partialHash;
+            e.contentHash = contentHash;
+            pending.put(key, e);
+
+            if (pending.size() >= WRITE_BATCH)
+                write();
+        }
+
+        private static void setHashes(PreparedStatement ps, int from, Entry e) throws SQLException {
+            if (e.partialHash != null)
+                ps.setLong(from, e.partialHash);
+            else
+                ps.setNull(from, Types.BIGINT);
+            if (e.contentHash != null)
+                ps.setString(from + 1, e.contentHash);
+            else
+                ps.setNull(from + 1, Types.CHAR);
+        }
+
+        private void write() throws SQLException {
+
+            prepare();
+
+            int inserts = 0;
+            for (Map.Entry<Key, Entry> p : pending.entrySet()) {
+                Entry e = p.getValue();
+                if (e.inTable) {
+                    setHashes(ps_update, 1, e);
+                    ps_update.setLong(3, now);
+                    setKey(ps_update, 4, p.getKey());
+                    ps_update.addBatch();
+                } else {
+                    setKey(ps_insert, 1, p.getKey());
+                    setHashes(ps_insert, 5, e);
+                    ps_insert.setLong(7, now);
+                    ps_insert.addBatch();
+                    e.inTable = true;
+                    inserts++;
+                }
+            }
+
+            ps_insert.executeBatch();
+            ps_update.executeBatch();
+            ps_touch.executeBatch();
+
+            inserted += inserts;
+            pending.clear();
+            touches = 0;
+        }
+
+        /**
+         * Evicts what is too old or too much, and adds this run to the hit and miss counts kept in IndexState
+         *
+         * @return the entries left
+         */
+        long flush(long maxEntries) throws SQLException {
+
+            if (ps_find != null)
+                write();
+
+            long entries = getState(ENTRIES, -1);
+            if (entries < 0) {
+                try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM HashCache")) {
+                    rs.next();
+                    entries = rs.getLong(1);
+                }
+            } else {
+                entries += inserted;
+            }
+            inserted = 0;
+
+            try (PreparedStatement ps = db().prepareStatement("DELETE FROM HashCache WHERE LastUsed < ?")) {
+                ps.setLong(1, now - MAX_AGE_DAYS * 24 * 3600 * 1000L);
+                entries -= ps.executeUpdate();
+            }
+
+            // least recently used first; a whole run shares one LastUsed, so the excess goes by key, a chunk at a time
+            if (entries > maxEntries) {
+                try (
+                        PreparedStatement ps_oldest = db().prepareStatement("SELECT Device, Inode, Size, ModTime FROM HashCache ORDER BY LastUsed FETCH FIRST ? ROWS ONLY");
+                        PreparedStatement ps_delete = db().prepareStatement("DELETE FROM HashCache WHERE Device=? AND Inode=? AND Size=? AND ModTime=?")
+                ) {
+                    while (entries > maxEntries) {
+                        ps_oldest.setInt(1, (int) Math.min(entries - maxEntries, EVICTION_CHUNK));
+                        int found = 0;
+                        try (ResultSet rs = ps_oldest.executeQuery()) {
+                            while (rs.next()) {
+                                setKey(ps_delete, 1, new Key(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4)));
+                                ps_delete.addBatch();
+                                found++;
+                            }
+                        }
+                        if (found == 0)
+                            break;
+                        for (int deleted : ps_delete.executeBatch())
+                            entries -= deleted;
+                    }
+                }
+            }
+
+            setState(ENTRIES, Math.max(entries, 0));
+            setState(HITS, getState(HITS, 0) + hits);
+            setState(MISSES, getState(MISSES, 0) + misses);
+            Metrics.gauge("hashcache.entries", entries);
+            hits = 0;
+            misses = 0;
+
+            db().commit();
+            return entries;
+        }
+
+        static String hitRate(long hits, long misses) {
+            return hits + " hits, " + misses + " misses (" + (hits + misses == 0 ? 0 : hits * 100 / (hits + misses)) + "% hit rate)";
+        }
+    }
+
+    /**
+     * Staged content hashing for duplicate detection: files are grouped by size, groups with more than one
+     * member get a cheap hash of their first and last block and only the files whose partial hashes collide
+     * are read completely. Hashes are persisted in Files so that later runs only read what is new.
+     */
+    private static class ContentHashAction {
+
+        private static final int PARTIAL_BLOCK = 4 * 1024;
+
+        // files per round of reads, enough for every device to have a queue worth ordering
+        private static final int BATCH_FILES = 4096;
+
+        private long partialHashes = 0;
+        private long fullHashes = 0;
+        private long bytesRead = 0;
+
+        private final HashCache cache = new HashCache();
+
+        private static class Candidate implements IoScheduler.Task {
+            final int id;
+            final Path path;
+            final long size;
+            Long partialHash;
+            String contentHash;
+
+            HashCache.Key key = null;
+            HashCache.Entry cached = null;
+            boolean full = false;
+            boolean changed = false;
+            boolean failed = false;
+            long bytesRead = 0;
+
+            Candidate(int id, Path path, long size, Long partialHash, String contentHash) {
+                this.id = id;
+                this.path = path;
+                this.size = size;
+                this.partialHash = partialHash;
+                this.contentHash = contentHash;
+            }
+
+            @Override
+            public Path path() {
+                return path;
+            }
+
+            @Override
+            public long device() {
+                return key != null ? key.device : -1;
+            }
+
+            @Override
+            public long inode() {
+                return key != null ? key.inode : 0;
+            }
+
+            @Override
+            public void run(IoScheduler.Device device, java.nio.ByteBuffer buffer) throws IOException {
+                if (full)
+                    hashFull(this, device, buffer);
+                else
+                    hashPartial(this, device, buffer);
+            }
+
+            @Override
+            public void failed(IOException e) {
+                failed = true; // deleted or modified since indexing
+            }
+        }
+
+        private static java.security.MessageDigest newDigest() {
+            try {
+                return java.security.MessageDigest.getInstance("SHA-256");
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String toHex(byte[] digest) {
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        }
+
+        private static long toLong(byte[] digest) {
+            long l = 0;
+            for (int i = 0; i < 8; i++)
+                l = (l << 8) | (digest[i] & 0xFF);
+            return l;
+        }
+
+        /**
+         * Feeds [position, position + length) into the digest
+         */
+        private static void digestRange(Candidate f, FileChannel ch, java.security.MessageDigest md, long position, long length,
+                                        IoScheduler.Device device, java.nio.ByteBuffer buffer) throws IOException {
+
+            while (length > 0) {
+                buffer.clear();
+                if (length < buffer.capacity())
+                    buffer.limit((int) length);
+
+                int read = ch.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("File shrunk while hashing");
+
+                buffer.flip();
+                md.update(buffer);
+
+                position += read;
+                length -= read;
+                f.bytesRead += read;
+                Metrics.count("hash.bytes", read);
+                device.transferred(read);
+            }
+        }
+
+        /**
+         * Hashes the first and last block of the file. Files smaller than two blocks are read completely,
+         * in which case the content hash comes for free.
+         */
+        private static void hashPartial(Candidate f, IoScheduler.Device device, java.nio.ByteBuffer buffer) throws IOException {
+
+            long t = System.nanoTime();
+
+            try (FileChannel ch = FileChannel.open(f.path, StandardOpenOption.READ)) {
+
+                if (ch.size() != f.size)
+                    throw new IOException("Size changed since indexing: " + f.path);
+
+                java.security.MessageDigest md = newDigest();
+
+                if (f.size <= 2 * PARTIAL_BLOCK) {
+                    digestRange(f, ch, md, 0, f.size, device, buffer);
+                    byte[] digest = md.digest();
+                    f.partialHash = toLong(digest);
+                    f.contentHash = toHex(digest);
+                } else {
+                    digestRange(f, ch, md, 0, PARTIAL_BLOCK, device, buffer);
+                    digestRange(f, ch, md, f.size - PARTIAL_BLOCK, PARTIAL_BLOCK, device, buffer);
+                    f.partialHash = toLong(md.digest());
+                }
+            }
+
+            Metrics.time("hash.partial", t);
+        }
+
+        private static void hashFull(Candidate f, IoScheduler.Device device, java.nio.ByteBuffer buffer) throws IOException {
+
+            long t = System.nanoTime();
+
+            try (FileChannel ch = FileChannel.open(f.path, StandardOpenOption.READ)) {
+
+                if (ch.size() != f.size)
+                    throw new IOException("Size changed since indexing: " + f.path);
+
+                java.security.MessageDigest md = newDigest();
+                digestRange(f, ch, md, 0, f.size, device, buffer);
+                f.contentHash = toHex(md.digest());
+            }
+
+            Metrics.time("hash.full", t);
+        }
+
+        /**
+         * Takes the partial or the full hash of the file from the hash cache when it has it
+         */
+        private boolean fromCache(Candidate f, boolean full) throws IOException, SQLException {
+
+            f.key = f.size >= HashCache.MIN_SIZE ? HashCache.key(f.path) : null;
+            f.cached = null;
+            if (f.key == null)
+                return false;
+
+            if (f.key.size != f.size)
+                throw new IOException("Size changed since indexing: " + f.path);
+
+            f.cached = cache.find(f.key);
+            if (f.cached != null && (full ? f.cached.contentHash != null : f.cached.partialHash != null)) {
+                if (!full)
+                    f.partialHash = f.cached.partialHash;
+                if (f.contentHash == null)
+                    f.contentHash = f.cached.contentHash;
+                cache.hits++;
+                Metrics.count("hashcache.hit", 1);
+                return true;
+            }
+
+            cache.misses++;
+            Metrics.count("hashcache.miss", 1);
+            return false;
+        }
+
+        /**
+         * Fills in the partial or the full hashes of the files: from the hash cache where it knows them, read by
+         * the I/O scheduler otherwise. The cache and the database are only used from this thread.
+         */
+        private void hash(List<Candidate> files, boolean full) throws SQLException {
+
+            List<Candidate> toRead = new ArrayList<>();
+
+            for (Candidate f : files) {
+                try {
+                    if (fromCache(f, full)) {
+                        f.changed = true;
+                        continue;
+                    }
+                } catch (IOException e) {
+                    f.failed = true;
+                    continue;
+                }
+                f.full = full;
+                toRead.add(f);
+            }
+
+            IoScheduler.run(toRead);
+
+            for (Candidate f : toRead) {
+                bytesRead += f.bytesRead;
+                f.bytesRead = 0;
+                if (f.failed)
+                    continue;
+
+                f.changed = true;
+                if (full)
+                    fullHashes++;
+                else
+                    partialHashes++;
+
+                if (f.key != null) {
+                    try {
+                        cache.store(f.path, f.key, f.cached, f.partialHash, f.contentHash);
+                    } catch (IOException e) {
+                        // gone since: nothing to remember
+                    }
+                }
+            }
+        }
+
+        /**
+         * Evicts from the hash cache and prints how it did in this run
+         */
+        void flushCache() throws SQLException {
+            long hits = cache.hits, misses = cache.misses;
+            long entries = cache.flush(HashCache.MAX_ENTRIES);
+            if (hits + misses > 0)
+                System.out.println("Hash cache: " + HashCache.hitRate(hits, misses) + ", " + entries + " entries.");
+        }
+
+        /**
+         * Computes the missing hashes for all the files which might have a duplicate.
+         *
+         * @param minSize only files strictly larger than this are considered
+         * @param patterns extensions filter, as for --duplicates
+         */
+        public void hashCandidates(long minSize, Vector<String> patterns) {
+
+            long tm = System.currentTimeMillis();
+            long groups = 0;
+            Progress progress = new Progress("MB hashed", 0);
+            IoScheduler.reset();
+
+            String sql_sizes = "SELECT f.Size FROM Files f WHERE f.Size > ?" + patternFilter("f", patterns) +
+                    " GROUP BY f.Size HAVING COUNT(*) > 1";
+
+            String sql_group = "SELECT f.ID, d.DirPath, f.FileName, f.PartialHash, f.ContentHash, d.ID FROM Files f, Directories d " +
+                    "WHERE f.Size = ? AND d.ID = f.DirectoryRef";
+
+            try (
+                    PreparedStatement ps_sizes = db().prepareStatement(sql_sizes);
+                    PreparedStatement ps_group = db().prepareStatement(sql_group);
+                    PreparedStatement ps_update = db().prepareStatement("UPDATE Files SET PartialHash = ?, ContentHash = ? WHERE ID = ?")
+            ) {
+                ps_sizes.setLong(1, minSize);
+
+                List<List<Candidate>> batch = new ArrayList<>();
+                int files = 0;
+
+                try (ResultSet sizes = ps_sizes.executeQuery()) {
+                    while (sizes.next()) {
+
+                        long size = sizes.getLong(1);
+
+                        List<Candidate> group = new ArrayList<>();
+
+                        ps_group.setLong(1, size);
+                        try (ResultSet rs = ps_group.executeQuery()) {
+                            while (rs.next()) {
+                                Long partial = rs.getLong(4);
+                                if (rs.wasNull())
+                                    partial = null;
+                                group.add(new Candidate(rs.getInt(1), Paths.get(DirectoryPaths.path(rs.getInt(6), rs.getString(2)), rs.getString(3)), size,
+                                        partial, rs.getString(5)));
+                            }
+                        }
+
+                        batch.add(group);
+                        files += group.size();
+                        groups++;
+
+                        if (files >= BATCH_FILES) {
+                            hashGroups(batch, ps_update);
+                            batch.clear();
+                            files = 0;
+                            progress.update(bytesRead / (1024 * 1024));
+                        }
+                    }
+                }
+
+                hashGroups(batch, ps_update);
+
+            } catch (SQLException ex) {
+                System.out.println(ex.toString());
+            }
+
+            progress.done();
+            System.out.println("Hashed " + partialHashes + " partial, " + fullHashes + " full in " + groups + " size groups. Read " +
+                    bytesRead / (1024 * 1024) + "MB in " + ((double) (System.currentTimeMillis() - tm)) / 1000.0 + "s.");
+            IoScheduler.report();
+
+            try {
+                flushCache();
+            } catch (SQLException ex) {
+                System.out.println(ex.toString());
+            }
+        }
+
+        /**
+         * Hashes the files of the given sizes for a merge with other shards, whether or not they have a copy in this
+         * database, and prints "size, partial hash, content hash or -, path" for each of them.
+         *
+         * @param fullFor "size:partial hash" of the files to hash completely; null for partial hashes only
+         */
+        public void hashForMerge(Collection<Long> sizes, Set<String> fullFor, Vector<String> patterns) {
+
+            String sql_group = "SELECT f.ID, d.DirPath, f.FileName, f.PartialHash, f.ContentHash, d.ID FROM Files f, Directories d " +
+                    "WHERE f.Size = ? AND d.ID = f.DirectoryRef" + patternFilter("f", patterns);
+
+            try (
+                    PreparedStatement ps_group = db().prepareStatement(sql_group);
+                    PreparedStatement ps_update = db().prepareStatement("UPDATE Files SET PartialHash = ?, ContentHash = ? WHERE ID = ?")
+            ) {
+                List<Candidate> batch = new ArrayList<>();
+                Iterator<Long> it = sizes.iterator();
+
+                while (it.hasNext()) {
+
+                    long size = it.next();
+
+                    ps_group.setLong(1, size);
+                    try (ResultSet rs = ps_group.executeQuery()) {
+                        while (rs.next()) {
+                            Long partial = rs.getLong(4);
+                            if (rs.wasNull())
+                                partial = null;
+                            batch.add(new Candidate(rs.getInt(1), Paths.get(DirectoryPaths.path(rs.getInt(6), rs.getString(2)), rs.getString(3)), size,
+                                    partial, rs.getString(5)));
+                        }
+                    }
+
+                    if (batch.size() < BATCH_FILES && it.hasNext())
+                        continue;
+
+                    List<Candidate> partials = new ArrayList<>();
+                    for (Candidate f : batch) {
+                        if (f.partialHash == null)
+                            partials.add(f);
+                    }
+                    hash(partials, false);
+
+                    List<Candidate> fulls = new ArrayList<>();
+                    for (Candidate f : batch) {
+                        if (!f.failed && f.contentHash == null && fullFor != null && fullFor.contains(f.size + ":" + f.partialHash))
+                            fulls.add(f);
+                    }
+                    hash(fulls, true);
+
+                    for (Candidate f : batch) {
+                        if (f.changed && f.partialHash != null)
+                            addUpdate(ps_update, f);
+                        if (!f.failed)
+                            System.out.println(f.size + "\t" + f.partialHash + "\t" + (f.contentHash == null ? "-" : f.contentHash) + "\t" + f.path);
+                    }
+
+                    ps_update.executeBatch();
+                    db().commit();
+                    batch.clear();
+                }
+
+                cache.flush(HashCache.MAX_ENTRIES);
+            } catch (SQLException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        /**
+         * Stage 2, partial hashes for every member of every size group, then stage 3, full hashes only where partial
+         * hashes collide within a group. Each stage is one round of reads for the I/O scheduler.
+         */
+        private void hashGroups(List<List<Candidate>> groups, PreparedStatement ps_update) throws SQLException {
+
+            List<Candidate> partials = new ArrayList<>();
+            for (List<Candidate> group : groups) {
+                for (Candidate f : group) {
+                    if (f.partialHash == null)
+                        partials.add(f);
+                }
+            }
+            hash(partials, false);
+
+            List<Candidate> fulls = new ArrayList<>();
+            for (List<Candidate> group : groups) {
+
+                Map<Long, List<Candidate>> byPartial = new HashMap<>();
+                for (Candidate f : group) {
+                    if (f.failed)
+                        continue;
+                    List<Candidate> l = byPartial.get(f.partialHash);
+                    if (l == null)
+                        byPartial.put(f.partialHash, l = new ArrayList<>());
+                    l.add(f);
+                }
+
+                for (List<Candidate> l : byPartial.values()) {
+                    if (l.size() < 2)
+                        continue;
+                    for (Candidate f : l) {
+                        if (f.contentHash == null)
+                            fulls.add(f);
+                    }
+                }
+            }
+            hash(fulls, true);
+
+            for (List<Candidate> group : groups) {
+                for (Candidate f : group) {
+                    if (f.changed && f.partialHash != null)
+                        addUpdate(ps_update, f);
+                    f.changed = false;
+                }
+            }
+
+            ps_update.executeBatch();
+            db().commit();
+        }
+
+        private static void addUpdate(PreparedStatement ps_update, Candidate f) throws SQLException {
+            ps_update.setLong(1, f.partialHash);
+            if (f.contentHash != null)
+                ps_update.setString(2, f.contentHash);
+            else
+                ps_update.setNull(2, Types.CHAR);
+            ps_update.setInt(3, f.id);
+            ps_update.addBatch();
+        }
+    }
+
+    /**
+     * Rules attached to folders, kept in a trie of path segments so a lookup costs one step per segment of the
+     * path, however many rules there are. A rule applies to its folder only, a recursive rule to everything
+     * below it as well; the rule on the folder itself wins, then the deepest recursive one.
+     */
+    private static class FolderRules<T> {
+
+        private static class Node<T> {
+            Map<String, Node<T>> children = null;
+            T rule = null;
+            T recursiveRule = null;
+        }
+
+        private final Node<T> root = new Node<>();
+
+        static List<String> segments(String path) {
+            List<String> segments = new ArrayList<>();
+            for (int from = 0, to; from < path.length(); from = to + 1) {
+                to = path.indexOf(File.separatorChar, from);
+                if (to == -1)
+                    to = path.length();
+                if (to > from)
+                    segments.add(path.substring(from, to));
+            }
+            return segments;
+        }
+
+        /**
+         * Sets the rule of the folder, replacing the one it had
+         */
+        void put(String folder, T rule, boolean recursive) {
+
+            Node<T> node = root;
+            for (String segment : segments(folder)) {
+                if (node.children == null)
+                    node.children = new HashMap<>();
+                Node<T> child = node.children.get(segment);
+                if (child == null)
+                    node.children.put(segment, child = new Node<>());
+                node = child;
+            }
+
+            node.rule = recursive ? null : rule;
+            node.recursiveRule = recursive ? rule : null;
+        }
+
+        T get(String path) {
+
+            Node<T> node = root;
+            T found = root.recursiveRule;
+
+            for (String segment : segments(path)) {
+                node = node.children == null ? null : node.children.get(segment);
+                if (node == null)
+                    return found;
+                if (node.recursiveRule != null)
+                    found = node.recursiveRule;
+            }
+
+            return node.rule != null ? node.rule : found;
+        }
+    }
+
+    /**
+     * Names in recently used directories, so that existence checks and empty directory checks are answered
+     * from memory instead of a stat or a listing each. Least recently used listings go first once they hold
+     * more than MAX_ENTRIES names together. Only our own deletes are reflected; what others change on disk
+     * meanwhile is seen once the listing is evicted.
+     */
+    private static class ListingCache {
+
+        static final int MAX_ENTRIES = 1000000;
+
+        private final LinkedHashMap<String, Set<String>> listings = new LinkedHashMap<>(256, 0.75f, true);
+        private long entries = 0;
+
+        long hits = 0;
+        long misses = 0;
+
+        private Set<String> listing(String dir) {
+
+            Set<String> names = listings.get(dir);
+            if (names != null) {
+                hits++;
+                return names;
+            }
+
+            misses++;
+            names = new HashSet<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(dir))) {
+                for (Path p : ds)
+                    names.add(p.getFileName().toString());
+            } catch (IOException | InvalidPathException e) {
+                // missing or unreadable: nothing in it exists
+            }
+
+            listings.put(dir, names);
+            entries += names.size();
+
+            Iterator<Map.Entry<String, Set<String>>> it = listings.entrySet().iterator();
+            while (entries > MAX_ENTRIES && it.hasNext()) {
+                Map.Entry<String, Set<String>> eldest = it.next();
+                if (eldest.getValue() == names)
+                    break;
+                entries -= eldest.getValue().size();
+                it.remove();
+            }
+
+            return names;
+        }
+
+        boolean exists(String dir, String name) {
+            return listing(dir).contains(name);
+        }
+
+        boolean isEmpty(String dir) {
+            return listing(dir).isEmpty();
+        }
+
+        /**
+         * Records that dir/name was deleted by us
+         */
+        void deleted(String dir, String name) {
+            Set<String> names = listings.get(dir);
+            if (names != null && names.remove(name))
+                entries--;
+        }
+
+        void deletedDirectory(String dir) {
+            Set<String> names = listings.remove(dir);
+            if (names != null)
+                entries -= names.size();
+
+            File parent = new File(dir).getParentFile();
+            if (parent != null)
+                deleted(parent.getPath(), new File(dir).getName());
+        }
+    }
+
+    /**
+     * Whole directory trees present more than once. Every directory carries a Fingerprint, rolled up with its totals
+     * from the names and sizes of its files and the names and fingerprints of its subdirectories, so the copies of
+     * a tree share it at every level. Groups of equal fingerprints are checked file by file on content hashes,
+     * largest first, and nothing inside a tree already reported is reported again.
+     */
+    private static class DuplicateTreesAction {
+
+        private static class Tree {
+            final int id;
+            final String path;
+            final long size;
+            final long files;
+
+            Tree(int id, String path, long size, long files) {
+                this.id = id;
+                this.path = path;
+                this.size = size;
+                this.files = files;
+            }
+        }
+
+        // pairs of copies climbed from, per group of identical trees
+        private static final int MAX_CLIMBS = 64;
+
+        private final FolderRules<Boolean> reported = new FolderRules<>();
+        private final List<List<Tree>> identical = new ArrayList<>();
+        // each copy of a reported tree stands for all of them when looking for similar trees
+        private final Map<Integer, Integer> firstCopy = new HashMap<>();
+
+        long extraBytes = 0;
+        private final ContentHashAction hasher = new ContentHashAction();
+
+        long suppressedFiles = 0;
+
+        /**
+         * @return true when path is one of the reported trees or inside one of them
+         */
+        boolean covers(String path) {
+            return reported.get(path) != null;
+        }
+
+        /**
+         * Databases indexed before the fingerprints existed get them once, with their totals
+         */
+        private static void ensureFingerprints() throws SQLException {
+
+            try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM Directories WHERE Fingerprint IS NULL")) {
+                rs.next();
+                if (rs.getLong(1) == 0)
+                    return;
+            }
+
+            List<String> roots = new ArrayList<>();
+            try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT DirPath FROM Directories WHERE ParentID IS NULL")) {
+                while (rs.next())
+                    roots.add(rs.getString(1));
+            }
+
+            SubtreeTotalsAction totals = new SubtreeTotalsAction();
+            for (String root : roots)
+                totals.rollUp(root, false);
+            db().commit();
+        }
+
+        /**
+         * Finds the identical trees of at least minSize bytes, largest first
+         */
+        void find(long minSize) throws SQLException {
+
+            ensureFingerprints();
+            IoScheduler.reset();
+
+            List<List<Tree>> candidates = new ArrayList<>();
+
+            try (PreparedStatement ps = db().prepareStatement("SELECT ID, DirPath, Fingerprint, TotalSize, TotalFiles FROM Directories " +
+                    "WHERE TotalFiles > 0 AND TotalSize >= ? AND Fingerprint IN (SELECT Fingerprint FROM Directories " +
+                    "WHERE TotalFiles > 0 AND TotalSize >= ? GROUP BY Fingerprint HAVING COUNT(*) > 1) ORDER BY TotalSize DESC, Fingerprint, ID")) {
+
+                ps.setLong(1, minSize);
+                ps.setLong(2, minSize);
+
+                long fingerprint = 0;
+                List<Tree> group = null;
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Tree t = new Tree(rs.getInt(1), DirectoryPaths.path(rs.getInt(1), rs.getString(2)), rs.getLong(4), rs.getLong(5));
+                        if (group == null || rs.getLong(3) != fingerprint || t.size != group.get(0).size || t.files != group.get(0).files) {
+                            candidates.add(group = new ArrayList<>());
+                            fingerprint = rs.getLong(3);
+                        }
+                        group.add(t);
+                    }
+                }
+            }
+
+            try (PreparedStatement ps_update = db().prepareStatement("UPDATE Files SET PartialHash = ?, ContentHash = ? WHERE ID = ?")) {
+
+                for (List<Tree> group : candidates) {
+
+                    if (group.size() < 2)
+                        continue;
+
+                    boolean news = false;
+                    for (Tree t : group)
+                        news |= !covers(t.path);
+                    if (!news)
+                        continue;
+
+                    for (List<Tree> copies : verify(group, ps_update)) {
+
+                        // copies inside trees already reported were counted with them
+                        int fresh = 0;
+                        for (Tree t : copies)
+                            fresh += covers(t.path) ? 0 : 1;
+                        extraBytes += copies.get(0).size * (fresh == copies.size() ? fresh - 1 : fresh);
+
+                        identical.add(copies);
+                        for (Tree t : copies) {
+                            reported.put(t.path, true, true);
+                            firstCopy.put(t.id, copies.get(0).id);
+                        }
+                    }
+
+                    db().commit();
+                }
+            }
+
+            IoScheduler.report();
+            hasher.flushCache();
+        }
+
+        /**
+         * A file of a tree, with its path relative to the tree
+         */
+        private static class FileRow {
+            final String relativePath;
+            final ContentHashAction.Candidate file;
+
+            FileRow(String relativePath, ContentHashAction.Candidate file) {
+                this.relativePath = relativePath;
+                this.file = file;
+            }
+        }
+
+        /**
+         * Files of a tree with their path relative to it, sorted by it
+         */
+        private static List<FileRow> files(Tree t) throws SQLException {
+
+            List<FileRow> files = new ArrayList<>();
+
+            String select = "SELECT f.ID, f.FileName, f.Size, f.PartialHash, f.ContentHash, d.ID, d.DirPath FROM Files f, Directories d WHERE f.DirectoryRef = d.ID AND ";
+
+            if (DirectoryPaths.compact) {
+                // on the DirectoryRef index, IDS_PER_QUERY directories at a time
+                int[] ids = DirectoryPaths.subtree(t.id)[0];
+                try (PreparedStatement ps = db().prepareStatement(select + "d.ID IN (" + DirectoryPaths.idParameters() + ")")) {
+                    for (int from = 0; from < ids.length; from += DirectoryPaths.IDS_PER_QUERY) {
+                        DirectoryPaths.setIds(ps, ids, from, ids.length);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            addFiles(rs, t, files);
+                        }
+                    }
+                }
+            } else {
+                // the root, then the range of the paths below it: an OR of the two would be read as a table scan
+                String[] range = subtreeRange(t.path);
+                try (PreparedStatement ps = db().prepareStatement(select + "d.ID = ? UNION ALL " + select + "d.DirPath > ? AND d.DirPath < ?")) {
+                    ps.setInt(1, t.id);
+                    ps.setString(2, range[0]);
+                    ps.setString(3, range[1]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        addFiles(rs, t, files);
+                    }
+                }
+            }
+
+            Collections.sort(files, new Comparator<FileRow>() {
+                @Override
+                public int compare(FileRow a, FileRow b) {
+                    return a.relativePath.compareTo(b.relativePath);
+                }
+            });
+            return files;
+        }
+
+        /**
+         * Adds the rows of a files() query, relative to the tree
+         */
+        private static void addFiles(ResultSet rs, Tree t, List<FileRow> files) throws SQLException {
+            while (rs.next()) {
+                String dirPath = DirectoryPaths.path(rs.getInt(6), rs.getString(7));
+                Long partial = rs.getLong(4);
+                if (rs.wasNull())
+                    partial = null;
+                ContentHashAction.Candidate f = new ContentHashAction.Candidate(rs.getInt(1), Paths.get(dirPath, rs.getString(2)), rs.getLong(3),
+                        partial, rs.getString(5));
+                files.add(new FileRow(dirPath.substring(t.path.length()) + File.separator + rs.getString(2), f));
+            }
+        }
+
+        /**
+         * Splits trees with the same fingerprint by content: same relative paths, sizes and content hashes
+         *
+         * @return the groups of two or more trees found identical
+         */
+        private List<List<Tree>> verify(List<Tree> group, PreparedStatement ps_update) throws SQLException {
+
+            List<List<FileRow>> listings = new ArrayList<>();
+            List<Tree> trees = new ArrayList<>();
+
+            // fingerprints may collide: only the trees with the layout of the first one go on
+            List<FileRow> first = files(group.get(0));
+            for (Tree t : group) {
+                List<FileRow> l = t == group.get(0) ? first : files(t);
+                boolean same = l.size() == first.size();
+                for (int i = 0; same && i < l.size(); i++)
+                    same = l.get(i).relativePath.equals(first.get(i).relativePath) && l.get(i).file.size == first.get(i).file.size;
+                if (same) {
+                    trees.add(t);
+                    listings.add(l);
+                }
+            }
+
+            if (trees.size() < 2)
+                return Collections.emptyList();
+
+            // the copies of every file are hashed together: partial hashes, then full ones where those collide
+            List<List<ContentHashAction.Candidate>> positions = new ArrayList<>();
+            List<List<ContentHashAction.Candidate>> batch = new ArrayList<>();
+            int files = 0;
+
+            for (int i = 0; i < first.size(); i++) {
+
+                List<ContentHashAction.Candidate> copies = new ArrayList<>();
+                for (List<FileRow> l : listings)
+                    copies.add(l.get(i).file);
+                positions.add(copies);
+                batch.add(copies);
+
+                files += copies.size();
+                if (files >= ContentHashAction.BATCH_FILES || i == first.size() - 1) {
+                    hasher.hashGroups(batch, ps_update);
+                    batch.clear();
+                    files = 0;
+                }
+            }
+
+            long[] digests = new long[trees.size()];
+            boolean[] unreadable = new boolean[trees.size()];
+
+            for (List<ContentHashAction.Candidate> copies : positions) {
+                for (int m = 0; m < copies.size(); m++) {
+                    String hash = copies.get(m).contentHash;
+                    if (hash == null)
+                        unreadable[m] = true;
+                    else
+                        digests[m] = digests[m] * 0x9E3779B97F4A7C15L + Long.parseUnsignedLong(hash.substring(0, 16), 16);
+                }
+            }
+
+            Map<Long, List<Tree>> byContent = new LinkedHashMap<>();
+            for (int m = 0; m < trees.size(); m++) {
+                if (unreadable[m])
+                    continue;
+                List<Tree> l = byContent.get(digests[m]);
+                if (l == null)
+                    byContent.put(digests[m], l = new ArrayList<>());
+                l.add(trees.get(m));
+            }
+
+            List<List<Tree>> result = new ArrayList<>();
+            for (List<Tree> l : byContent.values()) {
+                if (l.size() > 1)
+                    result.add(l);
+            }
+            return result;
+        }
+
+        void printIdentical() {
+
+            for (List<Tree> copies : identical) {
+                Tree t = copies.get(0);
+                System.out.println("Duplicate tree: " + copies.size() + " copies, " + t.files + " files each [" + t.size / (1024 * 1024) + "MB]");
+                for (Tree copy : copies)
+                    System.out.println(" --> " + copy.path);
+            }
+
+            System.out.println(identical.size() + " duplicate trees, " + extraBytes / (1024 * 1024) + "MB in extra copies.");
+        }
+
+        /**
+         * Climbs from the copies of every identical tree to their parents, as long as the parents still have at
+         * least minRatio of their bytes in common (same relative path and size), and prints the highest pair
+         */
+        void printSimilar(double minRatio) throws SQLException {
+
+            Set<String> pairs = new HashSet<>();
+            // parents are shared by many copies, each pair of them is compared once
+            Map<String, Double> overlaps = new HashMap<>();
+            int similar = 0;
+
+            for (List<Tree> copies : identical) {
+                int climbs = 0;
+                for (int i = 0; i < copies.size() && climbs < MAX_CLIMBS; i++) {
+                    for (int k = i + 1; k < copies.size() && climbs++ < MAX_CLIMBS; k++) {
+
+                        int a = copies.get(i).id, b = copies.get(k).id;
+                        Tree bestA = null, bestB = null;
+                        double best = 0;
+
+                        while (true) {
+                            a = DirectoryPaths.parent(a);
+                            b = DirectoryPaths.parent(b);
+                            if (a == -1 || b == -1 || a == b)
+                                break;
+
+                            Tree ta = tree(a), tb = tree(b);
+                            if (ta.path.startsWith(subtreeRange(tb.path)[0]) || tb.path.startsWith(subtreeRange(ta.path)[0]))
+                                break;
+
+                            String key = Math.min(a, b) + ":" + Math.max(a, b);
+                            Double ratio = overlaps.get(key);
+                            if (ratio == null)
+                                overlaps.put(key, ratio = overlap(ta, tb));
+                            if (ratio < minRatio)
+                                break;
+
+                            bestA = ta;
+                            bestB = tb;
+                            best = ratio;
+                        }
+
+                        if (bestA == null || (covers(bestA.path) && covers(bestB.path)))
+                            continue;
+
+                        int idA = firstCopy.containsKey(bestA.id) ? firstCopy.get(bestA.id) : bestA.id;
+                        int idB = firstCopy.containsKey(bestB.id) ? firstCopy.get(bestB.id) : bestB.id;
+
+                        if (pairs.add(Math.min(idA, idB) + ":" + Math.max(idA, idB))) {
+                            similar++;
+                            System.out.println("Similar trees: " + (int) (best * 100) + "% of the bytes at the same path and size [" +
+                                    bestA.size / (1024 * 1024) + "MB, " + bestB.size / (1024 * 1024) + "MB]");
+                            System.out.println(" --> " + bestA.path);
+                            System.out.println(" --> " + bestB.path);
+                        }
+                    }
+                }
+            }
+
+            System.out.println(similar + " similar tree pairs with at least " + (int) (minRatio * 100) + "% in common.");
+        }
+
+        private static Tree tree(int id) throws SQLException {
+            try (PreparedStatement ps = db().prepareStatement("SELECT TotalSize, TotalFiles FROM Directories WHERE ID = ?")) {
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    return new Tree(id, DirectoryPaths.path(id), rs.getLong(1), rs.getLong(2));
+                }
+            }
+        }
+
+        /**
+         * Bytes of the files found in both trees at the same relative path with the same size, over the larger tree
+         */
+        private static double overlap(Tree a, Tree b) throws SQLException {
+
+            Map<String, Long> sizes = new HashMap<>();
+            for (FileRow f : files(a))
+                sizes.put(f.relativePath, f.file.size);
+
+            long common = 0;
+            for (FileRow f : files(b)) {
+                long size = f.file.size;
+                Long other = sizes.get(f.relativePath);
+                if (other != null && other == size)
+                    common += size;
+            }
+
+            return (double) common / Math.max(Math.max(a.size, b.size), 1);
+        }
+    }
+
+    private static class ListDuplicates {
+
+        /**
+         * Trees reported as a whole by DuplicateTreesAction; their files are not listed again one by one
+         */
+        DuplicateTreesAction trees = null;
+
+        private static final int DO_NOTHING = 0;
+        private static final int DELETE_FOLDER_RECURSIVE = 7;
+        private static final int IGNORE_FOLDER_RECURSIVE = 8;
+
+        private static final int DELETE_LEFT = 1;
+        private static final int DELETE_ALL_LEFT = 2;
+        private static final int SKIP_ALL_FILES_FROM_DIRECTORY_LEFT = 3;
+
+        private static final int DELETE_RIGHT = 4;
+        private static final int DELETE_ALL_RIGHT = 5;
+        private static final int SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT = 6;
+
+        private static final int SKIP_ALL_FILES_FROM_DIRECTORY = 1007;
+        private static final int DELETE_ALL_FROM_DIRECTORY = 1008;
+        private static final int DELETE_ALL_FROM_DIRECTORY_RECURSIVELY = 1009;
+        private static final int IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY = 1010;
+
+        private static final int MAX_LISTED_MEMBERS = 20;
+
+        private final ListingCache listings = new ListingCache();
+
+        private void deleteFileAndEmptyDir(String dir, String file) {
+            try {
+                File file_ = new File(dir + File.separator + file);
+                if (file_.delete())
+                    listings.deleted(dir, file);
+
+                File dir_ = new File(dir);
+                if (listings.isEmpty(dir) && dir_.delete())
+                    listings.deletedDirectory(dir);
+            } catch (Exception ex) {
+                System.out.println(ex.toString());
+            }
+        }
+
+        private boolean fileExists(String dir, String file) {
+            return listings.exists(dir, file);
+        }
+
+        private boolean printOptionsMenu(Integer left_option, Integer right_option) {
+
+            boolean smth_printed = false;
+
+            if (left_option == null || left_option != SKIP_ALL_FILES_FROM_DIRECTORY) {
+                smth_printed = true;
+                System.out.println(DELETE_LEFT + ". Delete file from left");
+                System.out.println(DELETE_ALL_LEFT + ". Delete all files from left directory");
+                System.out.println(SKIP_ALL_FILES_FROM_DIRECTORY_LEFT + ". Ignore all comparisons with left directory");
+            }
+
+            if (right_option == null || right_option != SKIP_ALL_FILES_FROM_DIRECTORY) {
+                smth_printed = true;
+                System.out.println(DELETE_RIGHT + ". Delete file from right");
+                System.out.println(DELETE_ALL_RIGHT + ". Delete all files from right directory");
+                System.out.println(SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT + ". Ignore all comparisons with right directory");
+            }
+
+            if (smth_printed) {
+
+                System.out.println(DELETE_FOLDER_RECURSIVE + ". Delete recursive folder...");
+                System.out.println(IGNORE_FOLDER_RECURSIVE + ". Ignore folder...");
+                System.out.println(DO_NOTHING + ". Move to next file (do nothing)");
+
+            }
+            return smth_printed;
+        }
+
+        /**
+         * @return true when every member of the set lies in a tree reported by DuplicateTreesAction
+         */
+        private boolean insideTrees(PreparedStatement ps_listMembers) throws SQLException {
+            try (ResultSet rs = ps_listMembers.executeQuery()) {
+                while (rs.next()) {
+                    if (!trees.covers(DirectoryPaths.path(rs.getInt(4), rs.getString(1))))
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        public void printDuplicates(long sizeKB, Vector<String> patterns) {
+
+            /**
+             * Folder decisions taken during the session; recursive ones also answer for everything below
+             */
+            class FolderActions {
+
+                private final FolderRules<Integer> rules = new FolderRules<>();
+
+                public Integer get(String path) {
+                    return rules.get(path);
                 }
 
                 public String put(String s, int action) {
 
-                    s = s.trim();
-                    if (s.endsWith(File.separator))
-                        s = s.substring(s.indexOf(File.separator));
+                    s = s.trim();
+                    if (s.endsWith(File.separator))
+                        s = s.substring(s.indexOf(File.separator));
+
+                    if (!new File(s).exists() || !new File(s).isDirectory())
+                        return null;
+
+                    if (action == DELETE_ALL_FROM_DIRECTORY_RECURSIVELY)
+                        rules.put(s, DELETE_ALL_FROM_DIRECTORY, true);
+                    else if (action == IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY)
+                        rules.put(s, SKIP_ALL_FILES_FROM_DIRECTORY, true);
+                    else
+                        rules.put(s, action, false);
+                    return s;
+                }
+            }
+
+            FolderActions folder_action = new FolderActions();
+
+            String patternSearch = patternFilter("f", patterns);
+
+            // files match on content; ContentHash is filled in by ContentHashAction only for real candidates.
+            // The sets are found once on the (Size, ContentHash) index and their members are read set by set,
+            // so nothing is held in memory but the copy the others are compared to.
+            try (
+                    PreparedStatement ps_listGroups = db().prepareStatement(
+                            "SELECT f.Size, f.ContentHash, COUNT(*) FROM Files f WHERE f.Size > ? AND f.ContentHash IS NOT NULL" +
+                                    patternSearch + " GROUP BY f.Size, f.ContentHash HAVING COUNT(*) > 1");
+                    PreparedStatement ps_listMembers = db().prepareStatement(
+                            "SELECT d.DirPath, f.FileName, f.ID, d.ID FROM Files f, Directories d WHERE " +
+                                    "f.Size = ? AND f.ContentHash = ? AND d.ID = f.DirectoryRef" + patternSearch)
+            ) {
+                ps_listGroups.setLong(1, sizeKB * 1024);
+                ResultSet groups = ps_listGroups.executeQuery();
+
+                while (groups.next()) {
+
+                    long size = groups.getLong(1);
+
+                    ps_listMembers.setLong(1, size);
+                    ps_listMembers.setString(2, groups.getString(2));
+
+                    if (trees != null && insideTrees(ps_listMembers)) {
+                        trees.suppressedFiles += groups.getInt(3);
+                        continue;
+                    }
+
+                    System.out.println("Duplicate set: " + groups.getInt(3) + " files [" + size / (1024 * 1024) + "MB]");
+
+                    try (ResultSet rs = ps_listMembers.executeQuery()) {
+                        int listed = 0;
+                        while (rs.next() && listed++ < MAX_LISTED_MEMBERS)
+                            System.out.println(" --> " + DirectoryPaths.path(rs.getInt(4), rs.getString(1)) + File.separator + rs.getString(2) + " --> f.ID = " + rs.getLong(3));
+                        if (listed > MAX_LISTED_MEMBERS)
+                            System.out.println(" --> ...");
+                    }
+
+                    // every other copy is compared with the first one still on disk
+                    String folderLeft = null;
+                    String fileName = null;
+                    long leftID = 0, leftDirID = 0;
+
+                    ResultSet rs = ps_listMembers.executeQuery();
+
+                    while (rs.next()) {
+
+                        String folderRight = DirectoryPaths.path(rs.getInt(4), rs.getString(1));
+                        String fileNameRight = rs.getString(2);
+
+                        if (!fileExists(folderRight, fileNameRight))
+                            continue;
+
+                        if (folderLeft == null || !fileExists(folderLeft, fileName)) {
+                            folderLeft = folderRight;
+                            fileName = fileNameRight;
+                            leftID = rs.getLong(3);
+                            leftDirID = rs.getLong(4);
+                            continue;
+                        }
+
+                        // both copies belong to trees already reported as duplicates
+                        if (trees != null && trees.covers(folderLeft) && trees.covers(folderRight))
+                            continue;
+
+                        boolean leftDeleted = false;
+
+                        Integer left_option = folder_action.get(folderLeft);
+                        Integer right_option = folder_action.get(folderRight);
+
+                        if (left_option != null && left_option == DELETE_ALL_FROM_DIRECTORY) {
+                            deleteFileAndEmptyDir(folderLeft, fileName);
+                            leftDeleted = true;
+                        } else if (right_option != null && right_option == DELETE_ALL_FROM_DIRECTORY) {
+                            deleteFileAndEmptyDir(folderRight, fileNameRight);
+                        } else {
+
+                            System.out.println("File: " + fileName + " [" + size / (1024 * 1024) + "MB]" + " f1.ID=" + leftID + " f2.ID=" + rs.getLong(3));
+                            System.out.println(" --> " + folderLeft + " --> d1.ID = " + leftDirID);
+                            System.out.println(" --> " + folderRight + (fileNameRight.equals(fileName) ? "" : File.separator + fileNameRight) + " --> d2.ID = " + rs.getLong(4));
+
+                            if (printOptionsMenu(left_option, right_option))
+                                try {
+
+                                    Scanner input = new Scanner(System.in);
+                                    int option = input.nextInt();
+
+                                    if (option == DO_NOTHING)
+                                        continue;
+
+                                    switch (option) {
+
+                                        case IGNORE_FOLDER_RECURSIVE:
+
+                                            folder_action.put(input.nextLine(), IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY);
+                                            break;
+
+                                        case DELETE_FOLDER_RECURSIVE:
+
+                                            String folder = input.nextLine();
+                                            folder = folder_action.put(folder, DELETE_ALL_FROM_DIRECTORY_RECURSIVELY);
+
+                                            if (folder != null && folderLeft.startsWith(folder)) {
+                                                deleteFileAndEmptyDir(folderLeft, fileName);
+                                                leftDeleted = true;
+                                            } else if (folder != null && folderRight.startsWith(folder))
+                                                deleteFileAndEmptyDir(folderRight, fileNameRight);
+
+                                            break;
+
+                                        case DELETE_ALL_LEFT:
+                                            folder_action.put(folderLeft, DELETE_ALL_FROM_DIRECTORY);
+                                        case DELETE_LEFT:
+                                            deleteFileAndEmptyDir(folderLeft, fileName);
+                                            leftDeleted = true;
+                                            break;
+                                        case DELETE_ALL_RIGHT:
+                                            folder_action.put(folderRight, DELETE_ALL_FROM_DIRECTORY);
+                                        case DELETE_RIGHT:
+                                            deleteFileAndEmptyDir(folderRight, fileNameRight);
+                                            break;
+                                        case SKIP_ALL_FILES_FROM_DIRECTORY_LEFT:
+                                            folder_action.put(folderLeft, SKIP_ALL_FILES_FROM_DIRECTORY);
+                                            break;
+                                        case SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT:
+                                            folder_action.put(folderRight, SKIP_ALL_FILES_FROM_DIRECTORY);
+                                            break;
+                                    }
+
+                                } catch (Exception ex) {
+                                    System.out.println(ex.toString());
+                                }
+                        }
+
+                        if (leftDeleted) {
+                            folderLeft = folderRight;
+                            fileName = fileNameRight;
+                            leftID = rs.getLong(3);
+                            leftDirID = rs.getLong(4);
+                        }
+                    }
+
+                    rs.close();
+                }
+
+
+            } catch (SQLException ex) {
+                 System.out.println(ex.toString());
+            }
+
+            Metrics.count("listings.hits", listings.hits);
+            Metrics.count("listings.misses", listings.misses);
+        }
+    }
+
+    /**
+     * Non interactive clean up of the duplicates. Rules choose the copy to keep in every set and the other copies
+     * are written to a plan file, which can be reviewed before --dedupeRun applies it. The run appends every action
+     * it finished to a journal next to the plan, so an interrupted run resumes where it stopped.
+     */
+    private static class DedupePlanAction {
+
+        static final String DELETE = "DELETE";
+        static final String LINK = "LINK";
+
+        static final String OK = "OK";
+        static final String SKIPPED = "SKIPPED";
+        static final String FAILED = "FAILED";
+
+        private static final Random random = new Random();
+
+        private int age = 0;                 // 1 keeps the newest copy, -1 the oldest, 0 the first one found
+        private boolean hardlink = false;
+        private long minSizeKB = 0;
+        private final List<String> keepUnder = new ArrayList<>();
+        private final List<String> deleteUnder = new ArrayList<>();
+        private final FolderRules<Integer> keepRanks = new FolderRules<>();      // earlier keep-under rules rank first
+        private final FolderRules<Boolean> deletable = new FolderRules<>();
+        private final ListingCache listings = new ListingCache();
+        private final Vector<String> patterns = new Vector<>();
+
+        private static class Member {
+            final String path;
+            final long modTime;
+
+            Member(String path, long modTime) {
+                this.path = path;
+                this.modTime = modTime;
+            }
+        }
+
+        DedupePlanAction(List<String> rules) {
+
+            for (String rule : rules) {
+                int eq = rule.indexOf('=');
+                String name = eq == -1 ? rule : rule.substring(0, eq);
+                String value = eq == -1 ? null : rule.substring(eq + 1);
+
+                if (value == null && (name.equals("keep-under") || name.equals("delete-under") || name.equals("min") || name.equals("ext")))
+                    throw new IllegalArgumentException("Rule needs a value: " + rule + "=...");
+
+                switch (name) {
+                    case "keep-newest":
+                        age = 1;
+                        break;
+                    case "keep-oldest":
+                        age = -1;
+                        break;
+                    case "hardlink":
+                        hardlink = true;
+                        break;
+                    case "keep-under":
+                        keepUnder.add(Paths.get(value).toAbsolutePath().toString());
+                        // get answers with the deepest rule, so a folder already covered by an earlier rule keeps
+                        // that rank; later rules are only added where no earlier one applies
+                        if (keepRanks.get(keepUnder.get(keepUnder.size() - 1)) == null)
+                            keepRanks.put(keepUnder.get(keepUnder.size() - 1), keepUnder.size() - 1, true);
+                        break;
+                    case "delete-under":
+                        deleteUnder.add(Paths.get(value).toAbsolutePath().toString());
+                        deletable.put(deleteUnder.get(deleteUnder.size() - 1), true, true);
+                        break;
+                    case "min":
+                        minSizeKB = Long.parseLong(value);
+                        break;
+                    case "ext":
+                        patterns.addAll(Arrays.asList(value.split(",")));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown rule: " + rule);
+                }
+            }
+        }
+
+        private boolean isDeletable(String path) {
+            return deletable.get(path) != null;
+        }
+
+        private int rank(String path) {
+            Integer rank = keepRanks.get(path);
+            return rank == null ? keepUnder.size() : rank;
+        }
+
+        /**
+         * Copies outside delete-under are kept first, then the ones under the earliest keep-under, then by age
+         */
+        private boolean better(Member m, Member keep) {
+
+            if (keep == null)
+                return true;
+
+            boolean mDeletable = isDeletable(m.path);
+            boolean keepDeletable = isDeletable(keep.path);
+            if (mDeletable != keepDeletable)
+                return !mDeletable;
+
+            int mRank = rank(m.path);
+            int keepRank = rank(keep.path);
+            if (mRank != keepRank)
+                return mRank < keepRank;
+
+            return age != 0 && Long.signum(m.modTime - keep.modTime) == age;
+        }
+
+        /**
+         * Writes the plan: one tab separated line per copy to remove, with the size and modification time it had
+         * when planned, its path and the path of the copy kept. Prints what running it would reclaim.
+         */
+        public void plan(String planFile) {
+
+            long tm = System.currentTimeMillis();
+
+            new ContentHashAction().hashCandidates(minSizeKB * 1024, patterns);
+
+            String patternSearch = patternFilter("f", patterns);
+
+            long sets = 0, actions = 0, bytes = 0;
+
+            try (
+                    PreparedStatement ps_listGroups = db().prepareStatement(
+                            "SELECT f.Size, f.ContentHash FROM Files f WHERE f.Size > ? AND f.ContentHash IS NOT NULL" +
+                                    patternSearch + " GROUP BY f.Size, f.ContentHash HAVING COUNT(*) > 1");
+                    PreparedStatement ps_listMembers = db().prepareStatement(
+                            "SELECT d.DirPath, f.FileName, f.ModTime, d.ID FROM Files f, Directories d WHERE " +
+                                    "f.Size = ? AND f.ContentHash = ? AND d.ID = f.DirectoryRef" + patternSearch);
+                    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(planFile), java.nio.charset.StandardCharsets.UTF_8)))
+            ) {
+                out.println("# action\tsize\tmodified\tpath\tkept copy");
+                out.println("# rules: " + (age > 0 ? "keep-newest " : age < 0 ? "keep-oldest " : "") + (hardlink ? "hardlink " : "") +
+                        "keep-under=" + keepUnder + " delete-under=" + deleteUnder + " min=" + minSizeKB + "KB ext=" + patterns);
+
+                ps_listGroups.setLong(1, minSizeKB * 1024);
+
+                try (ResultSet groups = ps_listGroups.executeQuery()) {
+                    while (groups.next()) {
+
+                        long size = groups.getLong(1);
+
+                        ps_listMembers.setLong(1, size);
+                        ps_listMembers.setString(2, groups.getString(2));
+
+                        List<Member> members = new ArrayList<>();
+                        Member keep = null;
+
+                        try (ResultSet rs = ps_listMembers.executeQuery()) {
+                            while (rs.next()) {
+                                String dir = DirectoryPaths.path(rs.getInt(4), rs.getString(1));
+                                if (!listings.exists(dir, rs.getString(2)))
+                                    continue;
+
+                                Member m = new Member(dir + File.separator + rs.getString(2), rs.getLong(3));
+                                members.add(m);
+                                if (better(m, keep))
+                                    keep = m;
+                            }
+                        }
+
+                        if (members.size() < 2)
+                            continue;
+
+                        sets++;
+
+                        for (Member m : members) {
+                            // with delete-under rules, only the copies below them are touched
+                            if (m == keep || (!deleteUnder.isEmpty() && !isDeletable(m.path)))
+                                continue;
+
+                            out.println((hardlink ? LINK : DELETE) + "\t" + size + "\t" + m.modTime + "\t" + m.path + "\t" + keep.path);
+                            actions++;
+                            bytes += size;
+                        }
+                    }
+                }
+
+                out.println("# " + sets + " duplicate sets, " + actions + " actions, " + bytes + " bytes");
+
+                // what a run of an earlier plan in this file did says nothing about this one
+                Files.deleteIfExists(Paths.get(planFile + ".journal"));
+
+            } catch (Exception ex) {
+                System.out.println(ex.toString());
+                return;
+            }
+
+            System.out.println("Plan " + planFile + ": " + sets + " duplicate sets, " + actions + (hardlink ? " copies to link, " : " copies to delete, ") +
+                    bytes / (1024 * 1024) + "MB reclaimable [" + (System.currentTimeMillis() - tm) + "ms].");
+            System.out.println("Nothing was changed. Review the plan, then: --dedupeRun " + planFile);
+        }
+
+        /**
+         * A journal entry is for a line number and the content of the line, so that it never answers for
+         * another action at the same place in an edited or regenerated plan
+         */
+        private static long journalKey(long lineNo, int lineHash) {
+            return (lineNo << 32) | (lineHash & 0xffffffffL);
+        }
+
+        /**
+         * Applies a plan with a bounded pool of workers. Actions already in the journal with OK or SKIPPED are not
+         * repeated; FAILED ones are tried again.
+         */
+        public static void run(String planFile, int workers) {
+
+            long tm = System.currentTimeMillis();
+            File journalFile = new File(planFile + ".journal");
+
+            Set<Long> done = new HashSet<>();
+            if (journalFile.exists()) {
+                try (BufferedReader in = Files.newBufferedReader(journalFile.toPath(), java.nio.charset.StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] cols = line.split("\t");
+                        if (cols.length > 2 && (cols[2].equals(OK) || cols[2].equals(SKIPPED)))
+                            done.add(journalKey(Long.parseLong(cols[0]), Integer.parseUnsignedInt(cols[1], 16)));
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.toString());
+                    return;
+                }
+            }
+
+            final java.util.concurrent.atomic.AtomicLong applied = new java.util.concurrent.atomic.AtomicLong();
+            final java.util.concurrent.atomic.AtomicLong skipped = new java.util.concurrent.atomic.AtomicLong();
+            final java.util.concurrent.atomic.AtomicLong failed = new java.util.concurrent.atomic.AtomicLong();
+            final java.util.concurrent.atomic.AtomicLong bytes = new java.util.concurrent.atomic.AtomicLong();
+
+            // the reader waits when the workers fall behind, so the plan is never all in memory
+            java.util.concurrent.ThreadPoolExecutor pool = new java.util.concurrent.ThreadPoolExecutor(workers, workers,
+                    0, java.util.concurrent.TimeUnit.MILLISECONDS, new java.util.concurrent.ArrayBlockingQueue<Runnable>(workers * 16),
+                    new java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy());
+
+            Progress progress = new Progress("actions", 0);
+            long resumed = 0;
+
+            try (
+                    BufferedReader in = Files.newBufferedReader(Paths.get(planFile), java.nio.charset.StandardCharsets.UTF_8);
+                    final PrintWriter journal = new PrintWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true),
+                            java.nio.charset.StandardCharsets.UTF_8))
+            ) {
+                String line;
+                long lineNo = 0;
+
+                while ((line = in.readLine()) != null) {
+
+                    final long n = ++lineNo;
+                    if (line.startsWith("#") || line.isEmpty())
+                        continue;
+                    final int hash = line.hashCode();
+                    if (done.contains(journalKey(n, hash))) {
+                        resumed++;
+                        continue;
+                    }
+
+                    final String[] cols = line.split("\t");
+
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+
+                            String status = apply(cols);
+
+                            if (status.startsWith(OK)) {
+                                applied.incrementAndGet();
+                                bytes.addAndGet(Long.parseLong(cols[1]));
+                                Metrics.count(cols[0].equals(LINK) ? "dedupe.linked" : "dedupe.deleted", 1);
+                            } else if (status.startsWith(SKIPPED)) {
+                                skipped.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+
+                            synchronized (journal) {
+                                journal.println(n + "\t" + Integer.toHexString(hash) + "\t" + status);
+                                journal.flush();
+                            }
+                        }
+                    });
+
+                    progress.update(applied.get() + skipped.get() + failed.get());
+                }
+
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+            } catch (Exception e) {
+                pool.shutdownNow();
+                System.out.println(e.toString());
+            }
+
+            progress.done();
+            Metrics.count("dedupe.bytes", bytes.get());
+
+            System.out.println("Applied " + applied.get() + " actions (" + bytes.get() / (1024 * 1024) + "MB), " + skipped.get() + " skipped, " +
+                    failed.get() + " failed" + (resumed > 0 ? ", " + resumed + " done by a previous run" : "") +
+                    " [" + (System.currentTimeMillis() - tm) + "ms]. Journal: " + journalFile);
+            if (applied.get() > 0)
+                System.out.println("Run --refreshDb on the affected directories to update the index.");
+        }
+
+        /**
+         * Removes or links one copy, after checking that neither copy changed since the plan was made
+         */
+        private static String apply(String[] cols) {
+
+            if (cols.length != 5)
+                return FAILED + "\tmalformed line";
+
+            try {
+                long size = Long.parseLong(cols[1]);
+                long modTime = Long.parseLong(cols[2]);
+                Path target = Paths.get(cols[3]);
+                Path kept = Paths.get(cols[4]);
+
+                if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+                    return SKIPPED + "\tgone";
+                if (!Files.isRegularFile(kept) || Files.size(kept) != size)
+                    return SKIPPED + "\tkept copy changed";
+                if (Files.isSameFile(target, kept))
+                    return SKIPPED + "\talready linked";
+                if (Files.size(target) != size || (modTime > 0 && Files.getLastModifiedTime(target).toMillis() != modTime))
+                    return SKIPPED + "\tchanged since planned";
+
+                if (cols[0].equals(LINK)) {
+                    // the copy is replaced in one rename, it never goes missing; the link is made under a name
+                    // nobody else uses, and only a link made here is removed when the rename fails
+                    Path tmp = null;
+                    while (tmp == null) {
+                        Path candidate = target.resolveSibling(target.getFileName() + ".dedupe" + Long.toHexString(random.nextLong()));
+                        try {
+                            Files.createLink(candidate, kept);
+                            tmp = candidate;
+                        } catch (FileAlreadyExistsException taken) {
+                        }
+                    }
+                    try {
+                        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException | RuntimeException e) {
+                        Files.deleteIfExists(tmp);
+                        throw e;
+                    }
+                } else if (cols[0].equals(DELETE)) {
+                    Files.delete(target);
+                } else {
+                    return FAILED + "\tunknown action " + cols[0];
+                }
+
+                return OK;
+
+            } catch (Exception e) {
+                return FAILED + "\t" + e.toString();
+            }
+        }
+    }
+
+    /**
+     * Trigram index over the lower case file names, used by --locate. Posting lists hold Files.ID values,
+     * sorted and delta / varint encoded, in segments of at most CHUNK_FILES files so that building them needs
+     * bounded memory. Files get increasing ids and names never change in place, so the index is kept current
+     * by appending segments for the ids above the last indexed one; ids of deleted files are dropped when
+     * the candidates are verified and the index is rebuilt once they are the majority.
+     */
+    private static class TrigramIndexAction {
+
+        private static final int CHUNK_FILES = 1000000;
+        private static final int VERIFY_BATCH = 100;
+
+        private static final String LAST_FILE_ID = "TrigramLastFileID";
+        private static final String INDEXED_FILES = "TrigramIndexedFiles";
+
+        static long trigram(char c1, char c2, char c3) {
+            return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+        }
+
+        static Set<Long> trigrams(String lowerName) {
+            Set<Long> t = new HashSet<>();
+            for (int i = 0; i + 2 < lowerName.length(); i++)
+                t.add(trigram(lowerName.charAt(i), lowerName.charAt(i + 1), lowerName.charAt(i + 2)));
+            return t;
+        }
+
+        static byte[] encode(int[] ids, int count) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(count * 2);
+            int prev = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = ids[i] - prev;
+                prev = ids[i];
+                while ((delta & ~0x7F) != 0) {
+                    out.write((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                out.write(delta);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Appends the decoded ids to ids[0..count), returns the new count
+         */
+        static int decode(byte[] postings, int[][] ids, int count) {
+            int prev = 0;
+            for (int i = 0; i < postings.length; ) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[i++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                prev += delta;
+
+                if (count == ids[0].length)
+                    ids[0] = Arrays.copyOf(ids[0], Math.max(16, count * 2));
+                ids[0][count++] = prev;
+            }
+            return count;
+        }
+
+        /**
+         * Indexes the files added since the last update; rebuilds the index when most of it points to deleted files
+         */
+        public void update() {
+
+            try {
+                long lastFileID = getState(LAST_FILE_ID, 0);
+                long indexedFiles = getState(INDEXED_FILES, 0);
+
+                long liveFiles;
+                try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM Files")) {
+                    rs.next();
+                    liveFiles = rs.getLong(1);
+                }
+
+                if (indexedFiles > 2 * liveFiles + CHUNK_FILES) {
+                    try (Statement s = db().createStatement()) {
+                        s.execute("DELETE FROM NameTrigrams");
+                    }
+                    lastFileID = indexedFiles = 0;
+                }
+
+                long tm = System.currentTimeMillis();
+                long added = 0;
+
+                try (
+                        PreparedStatement ps_names = db().prepareStatement("SELECT ID, FileName FROM Files WHERE ID > ? ORDER BY ID");
+                        PreparedStatement ps_segment = db().prepareStatement("INSERT INTO NameTrigrams (Trigram, FirstID, IdCount, Postings) VALUES (?, ?, ?, ?)")
+                ) {
+                    ps_names.setLong(1, lastFileID);
+
+                    Map<Long, int[]> postings = new HashMap<>();
+                    Map<Long, Integer> counts = new HashMap<>();
+                    int chunk = 0;
+
+                    try (ResultSet rs = ps_names.executeQuery()) {
+                        while (rs.next()) {
+
+                            int id = rs.getInt(1);
+
+                            for (Long t : trigrams(rs.getString(2).toLowerCase(Locale.ROOT))) {
+                                int[] l = postings.get(t);
+                                Integer n = counts.get(t);
+                                if (l == null) {
+                                    postings.put(t, l = new int[4]);
+                                    n = 0;
+                                } else if (n == l.length) {
+                                    postings.put(t, l = Arrays.copyOf(l, n * 2));
+                                }
+                                l[n] = id;
+                                counts.put(t, n + 1);
+                            }
+
+                            lastFileID = id;
+                            added++;
+
+                            if (++chunk == CHUNK_FILES) {
+                                writeSegments(ps_segment, postings, counts);
+                                indexedFiles += chunk;
+                                chunk = 0;
+                                setState(LAST_FILE_ID, lastFileID);
+                                setState(INDEXED_FILES, indexedFiles);
+                                db().commit();
+                            }
+                        }
+                    }
+
+                    writeSegments(ps_segment, postings, counts);
+                    indexedFiles += chunk;
+                }
+
+                setState(LAST_FILE_ID, lastFileID);
+                setState(INDEXED_FILES, indexedFiles);
+                db().commit();
+
+                Metrics.count("trigram.names", added);
+                Metrics.timeNanos("trigram.update", (System.currentTimeMillis() - tm) * 1000000);
+
+                if (added > 0)
+                    System.out.println("Trigram index: " + added + " file names added [" + (System.currentTimeMillis() - tm) + "ms].");
+
+            } catch (SQLException ex) {
+                System.out.println(ex.toString());
+            }
+        }
+
+        private static void writeSegments(PreparedStatement ps_segment, Map<Long, int[]> postings, Map<Long, Integer> counts) throws SQLException {
+
+            int batch = 0;
+            for (Map.Entry<Long, int[]> e : postings.entrySet()) {
+                int n = counts.get(e.getKey());
+                ps_segment.setLong(1, e.getKey());
+                ps_segment.setInt(2, e.getValue()[0]);
+                ps_segment.setInt(3, n);
+                ps_segment.setBytes(4, encode(e.getValue(), n));
+                ps_segment.addBatch();
+                if (++batch % 200 == 0)
+                    ps_segment.executeBatch();
+            }
+            ps_segment.executeBatch();
+
+            postings.clear();
+            counts.clear();
+        }
+
+        /**
+         * Prints the files whose names contain all the terms
+         *
+         * @return false when the index cannot help (no term of 3 characters or more) and the caller should scan
+         */
+        public boolean locate(Vector<String> terms) {
+
+            Set<Long> wanted = new HashSet<>();
+            List<String> lowerTerms = new ArrayList<>();
+            for (String s : terms) {
+                lowerTerms.add(s.toLowerCase(Locale.ROOT));
+                wanted.addAll(trigrams(s.toLowerCase(Locale.ROOT)));
+            }
+
+            if (wanted.isEmpty())
+                return false;
+
+            // a read-only connection of --serve finds what the writers committed so far
+            if (readConnection.get() == null)
+                update();
+
+            try (
+                    PreparedStatement ps_count = db().prepareStatement("SELECT SUM(IdCount) FROM NameTrigrams WHERE Trigram = ?");
+                    PreparedStatement ps_postings = db().prepareStatement("SELECT Postings FROM NameTrigrams WHERE Trigram = ? ORDER BY FirstID")
+            ) {
+                // intersect starting with the rarest trigram
+                List<long[]> bySize = new ArrayList<>();
+                for (Long t : wanted) {
+                    ps_count.setLong(1, t);
+                    try (ResultSet rs = ps_count.executeQuery()) {
+                        rs.next();
+                        bySize.add(new long[]{rs.getLong(1), t});
+                    }
+                }
+                Collections.sort(bySize, new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] a, long[] b) {
+                        return Long.compare(a[0], b[0]);
+                    }
+                });
+
+                int[][] candidates = null;
+                int count = 0;
+
+                for (long[] t : bySize) {
+
+                    int[][] ids = {new int[(int) Math.min(t[0], CHUNK_FILES)]};
+                    int n = 0;
+
+                    ps_postings.setLong(1, t[1]);
+                    try (ResultSet rs = ps_postings.executeQuery()) {
+                        while (rs.next())
+                            n = decode(rs.getBytes(1), ids, n);
+                    }
+
+                    if (candidates == null) {
+                        candidates = ids;
+                        count = n;
+                    } else {
+                        count = intersect(candidates[0], count, ids[0], n);
+                    }
+
+                    if (count == 0)
+                        break;
+                }
+
+                Metrics.count("locate.candidates", count);
+                verify(candidates[0], count, lowerTerms);
+
+            } catch (SQLException ex) {
+                System.out.println(ex.toString());
+            }
+
+            return true;
+        }
+
+        /**
+         * Keeps in a[0..na) only the values also in b[0..nb); both sorted. Returns the new size of a
+         */
+        private static int intersect(int[] a, int na, int[] b, int nb) {
+            int i = 0, j = 0, n = 0;
+            while (i < na && j < nb) {
+                if (a[i] < b[j])
+                    i++;
+                else if (a[i] > b[j])
+                    j++;
+                else {
+                    a[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return n;
+        }
+
+        private static void verify(int[] ids, int count, List<String> lowerTerms) throws SQLException {
+
+            String sql = "SELECT d.DirPath, f.FileName, d.ID FROM Directories d, Files f WHERE d.ID = f.DirectoryRef AND f.ID IN (?";
+            for (int i = 1; i < VERIFY_BATCH; i++)
+                sql += ", ?";
+            sql += ")";
+
+            try (PreparedStatement ps_verify = db().prepareStatement(sql)) {
+
+                for (int from = 0; from < count; from += VERIFY_BATCH) {
+
+                    for (int i = 0; i < VERIFY_BATCH; i++)
+                        ps_verify.setInt(i + 1, from + i < count ? ids[from + i] : -1);
+
+                    try (ResultSet rs = ps_verify.executeQuery()) {
+                        outer:
+                        while (rs.next()) {
+                            String name = rs.getString(2);
+                            String lower = name.toLowerCase(Locale.ROOT);
+                            for (String term : lowerTerms) {
+                                if (!lower.contains(term))
+                                    continue outer;
+                            }
+                            System.out.println(DirectoryPaths.path(rs.getInt(3), rs.getString(1)) + File.separator + name);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts and bytes per power of two of the file size and per extension, filled in a single pass. Extensions are
+     * keyed by a 64 bit hash of their lower case characters in an open addressing table of primitive arrays, so
+     * adding a file allocates nothing and the table only grows with the number of distinct extensions.
+     */
+    private static class SizeHistogram {
+
+        static final int BUCKETS = 65;
+        static final int MAX_EXTENSION = 16;
+        static final long NO_EXTENSION = 0;
+
+        final long[] bucketFiles = new long[BUCKETS];  // bucket b > 0 holds the sizes in [2^(b-1), 2^b), bucket 0 the empty files
+        final long[] bucketBytes = new long[BUCKETS];
+
+        long[] keys = new long[256];
+        long[] extFiles = new long[256];
+        long[] extBytes = new long[256];
+        String[] extNames = new String[256];
+        int extCount = 0;
+
+        long files = 0;
+        long bytes = 0;
+
+        static int bucket(long size) {
+            return 64 - Long.numberOfLeadingZeros(size);
+        }
+
+        /**
+         * FNV-1a of the lower case extension, without the dot
+         */
+        static long extensionKey(String name) {
+
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0 || dot == name.length() - 1 || name.length() - dot - 1 > MAX_EXTENSION)
+                return NO_EXTENSION;
+
+            long h = 0xcbf29ce484222325L;
+            for (int i = dot + 1; i < name.length(); i++) {
+                h ^= Character.toLowerCase(name.charAt(i));
+                h *= 0x100000001b3L;
+            }
+            return h == NO_EXTENSION ? 1 : h;
+        }
+
+        static String extension(String name) {
+            return extensionKey(name) == NO_EXTENSION ? "(none)" : name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        }
+
+        void add(String name, long size) {
+            int slot = add(extensionKey(name), size);
+            if (extNames[slot] == null)
+                extNames[slot] = extension(name);
+        }
+
+        /**
+         * @return the slot of the extension; the caller names it when extNames[slot] is still null
+         */
+        int add(long key, long size) {
+
+            files++;
+            bytes += size;
+            int b = bucket(size);
+            bucketFiles[b]++;
+            bucketBytes[b] += size;
+
+            if ((extCount + 1) * 2 > keys.length)
+                grow();
+
+            int slot = slot(key);
+            if (extFiles[slot] == 0) {
+                keys[slot] = key;
+                extCount++;
+            }
+
+            extFiles[slot]++;
+            extBytes[slot] += size;
+            return slot;
+        }
+
+        /**
+         * Linear probing; a slot is taken once it counts a file
+         */
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+            while (extFiles[slot] != 0 && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+
+            long[] oldKeys = keys, oldFiles = extFiles, oldBytes = extBytes;
+            String[] oldNames = extNames;
+
+            keys = new long[oldKeys.length * 2];
+            extFiles = new long[keys.length];
+            extBytes = new long[keys.length];
+            extNames = new String[keys.length];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldFiles[i] == 0)
+                    continue;
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                extFiles[slot] = oldFiles[i];
+                extBytes[slot] = oldBytes[i];
+                extNames[slot] = oldNames[i];
+            }
+        }
+
+        void print(int top) {
+
+            long total = Math.max(bytes, 1);
+
+            System.out.println("Files by size:");
+            for (int b = 0; b < BUCKETS; b++) {
+                if (bucketFiles[b] == 0)
+                    continue;
+                String range = b == 0 ? "empty" : "[" + formatSize(1L << (b - 1)) + ", " + (b == 64 ? "..." : formatSize(1L << b)) + ")";
+                System.out.println("  " + range + ": " + bucketFiles[b] + " files, " + formatSize(bucketBytes[b]) + " = " + (bucketBytes[b] * 100) / total + "%");
+            }
+
+            // (bytes, slot) of the top extensions in a small heap, the table itself is never sorted
+            PriorityQueue<long[]> largest = new PriorityQueue<>(top + 1, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            for (int i = 0; i < keys.length; i++) {
+                if (extFiles[i] == 0)
+                    continue;
+                largest.add(new long[]{extBytes[i], i});
+                if (largest.size() > top)
+                    largest.poll();
+            }
+
+            List<long[]> order = new ArrayList<>(largest);
+            Collections.sort(order, Collections.reverseOrder(largest.comparator()));
+
+            System.out.println("Files by extension, largest " + order.size() + " of " + extCount + ":");
+            for (long[] e : order) {
+                int i = (int) e[1];
+                System.out.println("  " + extNames[i] + ": " + extFiles[i] + " files, " + formatSize(extBytes[i]) + " = " + (extBytes[i] * 100) / total + "%");
+            }
+
+            System.out.println(files + " files, " + formatSize(bytes) + ".");
+        }
+    }
+
+    /**
+     * Column oriented, memory mapped copy of the index. Every column is a primitive array sorted by file size,
+     * file and directory names are dictionary encoded and directories only keep their last path segment and
+     * their parent, so --locate, --usage and --duplicates can run on it without Derby and without per-row objects.
+     */
+    private static class Snapshot {
+
+        private static final long MAGIC = 0x4455534e41503031L; // "DUSNAP01"
+        private static final int VERSION = 1;
+
+        private static final int DIR_PARENT = 0;          // int, -1 for roots
+        private static final int DIR_NAME = 1;            // int, name id of the last path segment (full path for roots)
+        private static final int FILE_SIZE = 2;           // long, sorted in descending order
+        private static final int FILE_DIR = 3;            // int
+        private static final int FILE_NAME = 4;           // int
+        private static final int FILE_NAME_HASH = 5;      // int
+        private static final int FILE_CONTENT_HASH = 6;   // long, first 64 bits of the content hash, 0 when not hashed
+        private static final int NAME_OFFSETS = 7;        // int, nameCount + 1 offsets into NAMES
+        private static final int NAMES = 8;               // UTF-8 bytes
+        private static final int SECTIONS = 9;
+
+        private static final int HEADER_SIZE = 8 + 4 * 4 + SECTIONS * 2 * 8;
+
+        final int dirCount;
+        final int fileCount;
+        final int nameCount;
+
+        final IntBuffer dirParent;
+        final IntBuffer dirName;
+        final LongBuffer fileSize;
+        final IntBuffer fileDir;
+        final IntBuffer fileName;
+        final IntBuffer fileNameHash;
+        final LongBuffer fileContentHash;
+        final IntBuffer nameOffsets;
+        final java.nio.ByteBuffer names;
+
+        private Snapshot(FileChannel ch) throws IOException {
+
+            java.nio.ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            if (header.getLong() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a DiskUtility snapshot or unsupported version");
+
+            dirCount = header.getInt();
+            fileCount = header.getInt();
+            nameCount = header.getInt();
+
+            java.nio.ByteBuffer[] sections = new java.nio.ByteBuffer[SECTIONS];
+            for (int i = 0; i < SECTIONS; i++) {
+                long offset = header.getLong();
+                long length = header.getLong();
+                sections[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+
+            dirParent = sections[DIR_PARENT].asIntBuffer();
+            dirName = sections[DIR_NAME].asIntBuffer();
+            fileSize = sections[FILE_SIZE].asLongBuffer();
+            fileDir = sections[FILE_DIR].asIntBuffer();
+            fileName = sections[FILE_NAME].asIntBuffer();
+            fileNameHash = sections[FILE_NAME_HASH].asIntBuffer();
+            fileContentHash = sections[FILE_CONTENT_HASH].asLongBuffer();
+            nameOffsets = sections[NAME_OFFSETS].asIntBuffer();
+            names = sections[NAMES];
+        }
+
+        public static Snapshot open(String file) throws IOException {
+            // the mappings stay valid after the channel is closed
+            try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                return new Snapshot(ch);
+            }
+        }
+
+        /**
+         * Writes the Directories / Files tables to a snapshot. Columns are first streamed to temporary files,
+         * one per section, and then concatenated after the header.
+         */
+        public static void export(String file) throws IOException, SQLException {
+
+            Path target = Paths.get(file).toAbsolutePath();
+            Path[] tmp = new Path[SECTIONS];
+            DataOutputStream[] out = new DataOutputStream[SECTIONS];
+
+            int dirCount = 0, fileCount = 0;
+            Map<String, Integer> dictionary = new HashMap<>();
+            int[] nameBytes = {0};
+
+            try {
+                for (int i = 0; i < SECTIONS; i++) {
+                    tmp[i] = Files.createTempFile(target.getParent(), "snapshot", ".tmp");
+                    out[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp[i]), 64 * 1024));
+                }
+
+                out[NAME_OFFSETS].writeInt(0);
+
+                int[] dirIndex;
+
+                try (Statement s = db().createStatement()) {
+
+                    ResultSet rs = s.executeQuery("SELECT MAX(ID) FROM Directories");
+                    rs.next();
+                    dirIndex = new int[rs.getInt(1) + 1];
+                    rs.close();
+
+                    // ids only grow, so parents always come before their children
+                    rs = s.executeQuery("SELECT ID, DirPath, ParentID, Name FROM Directories ORDER BY ID");
+                    while (rs.next()) {
+
+                        String path = rs.getString(2);
+                        int parent = rs.getInt(3);
+                        if (rs.wasNull())
+                            parent = -1;
+                        else
+                            path = path == null ? rs.getString(4) : DirectoryPaths.leaf(path);
+
+                        dirIndex[rs.getInt(1)] = dirCount++;
+                        out[DIR_PARENT].writeInt(parent == -1 ? -1 : dirIndex[parent]);
+                        out[DIR_NAME].writeInt(nameId(dictionary, path, out, nameBytes));
+                    }
+                    rs.close();
+
+                    rs = s.executeQuery("SELECT DirectoryRef, FileName, Size, NameHash, ContentHash FROM Files ORDER BY Size DESC, ContentHash");
+                    while (rs.next()) {
+
+                        String contentHash = rs.getString(5);
+
+                        out[FILE_DIR].writeInt(dirIndex[rs.getInt(1)]);
+                        out[FILE_NAME].writeInt(nameId(dictionary, rs.getString(2), out, nameBytes));
+                        out[FILE_SIZE].writeLong(rs.getLong(3));
+                        out[FILE_NAME_HASH].writeInt(rs.getInt(4));
+                        out[FILE_CONTENT_HASH].writeLong(contentHash == null ? 0 : Long.parseUnsignedLong(contentHash.substring(0, 16), 16));
+                        fileCount++;
+                    }
+                    rs.close();
+                }
+
+                for (DataOutputStream o : out)
+                    o.close();
+
+                try (FileChannel ch = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+                    java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(HEADER_SIZE);
+                    header.putLong(MAGIC).putInt(VERSION).putInt(dirCount).putInt(fileCount).putInt(dictionary.size());
+
+                    long offset = HEADER_SIZE;
+                    for (int i = 0; i < SECTIONS; i++) {
+                        long length = Files.size(tmp[i]);
+                        header.putLong(offset).putLong(length);
+                        offset += length;
+                    }
+
+                    header.flip();
+                    ch.write(header, 0);
+
+                    long position = HEADER_SIZE;
+                    for (int i = 0; i < SECTIONS; i++) {
+                        try (FileChannel section = FileChannel.open(tmp[i], StandardOpenOption.READ)) {
+                            long length = section.size();
+                            for (long done = 0; done < length; )
+                                done += section.transferTo(done, length - done, ch.position(position + done));
+                            position += length;
+                        }
+                    }
+                }
+
+                System.out.println("Snapshot " + target + ": " + dirCount + " directories, " + fileCount + " files, " +
+                        dictionary.size() + " distinct names, " + Files.size(target) / (1024 * 1024) + "MB.");
+
+            } finally {
+                for (int i = 0; i < SECTIONS; i++) {
+                    if (out[i] != null)
+                        out[i].close();
+                    if (tmp[i] != null)
+                        Files.deleteIfExists(tmp[i]);
+                }
+            }
+        }
+
+        private static int nameId(Map<String, Integer> dictionary, String name, DataOutputStream[] out, int[] nameBytes) throws IOException {
+
+            Integer id = dictionary.get(name);
+            if (id != null)
+                return id;
+
+            byte[] b = name.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            if ((long) nameBytes[0] + b.length > Integer.MAX_VALUE)
+                throw new IOException("Too many distinct names for a snapshot");
+
+            out[NAMES].write(b);
+            nameBytes[0] += b.length;
+            out[NAME_OFFSETS].writeInt(nameBytes[0]);
+
+            id = dictionary.size();
+            dictionary.put(name, id);
+            return id;
+        }
+
+        String name(int id) {
+            int from = nameOffsets.get(id);
+            byte[] b = new byte[nameOffsets.get(id + 1) - from];
+            for (int i = 0; i < b.length; i++)
+                b[i] = names.get(from + i);
+            return new String(b, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        String dirPath(int dir) {
+            int parent = dirParent.get(dir);
+            if (parent == -1)
+                return name(dirName.get(dir));
+            String parentPath = dirPath(parent);
+            return parentPath + (parentPath.endsWith(File.separator) ? "" : File.separator) + name(dirName.get(dir));
+        }
+
+        /**
+         * Case insensitive substring match on the encoded name; ASCII names are compared byte by byte,
+         * anything else is decoded.
+         */
+        private boolean nameContains(int id, String lowerTerm, byte[] lowerTermBytes) {
+
+            int from = nameOffsets.get(id);
+            int to = nameOffsets.get(id + 1);
+
+            for (int i = from; i < to; i++) {
+                if (names.get(i) < 0)
+                    return name(id).toLowerCase(Locale.ROOT).contains(lowerTerm);
+            }
+
+            outer:
+            for (int i = from; i <= to - lowerTermBytes.length; i++) {
+                for (int j = 0; j < lowerTermBytes.length; j++) {
+                    byte b = names.get(i + j);
+                    if (b >= 'A' && b <= 'Z')
+                        b += 'a' - 'A';
+                    if (b != lowerTermBytes[j])
+                        continue outer;
+                }
+                return true;
+            }
+
+            return false;
+        }
+
+        private boolean hasExtension(int id, Vector<String> patterns) {
+            return patterns.size() == 0 || matchesPatterns(name(id), patterns);
+        }
+
+        public void locate(Vector<String> terms) {
+
+            // the dictionary is matched once, the files only look their name up
+            BitSet matches = new BitSet(nameCount);
+            matches.set(0, nameCount);
+
+            for (String term : terms) {
+                String lower = term.toLowerCase(Locale.ROOT);
+                byte[] lowerBytes = lower.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                    if (!nameContains(id, lower, lowerBytes))
+                        matches.clear(id);
+                }
+            }
+
+            for (int i = 0; i < fileCount; i++) {
+                int name = fileName.get(i);
+                if (matches.get(name))
+                    System.out.println(dirPath(fileDir.get(i)) + File.separator + name(name));
+            }
+        }
+
+        public void usage(int min_dir_size) {
+
+            long[] dirSize = new long[dirCount];
+            long fullsize = 0;
+
+            for (int i = 0; i < fileCount; i++) {
+                long size = fileSize.get(i);
+                dirSize[fileDir.get(i)] += size;
+                fullsize += size;
+            }
+
+            fullsize = Math.max(fullsize / (1024 * 1024), 1);
+
+            // (size MB << 32 | dir) sorts the directories by size without boxing
+            long[] order = new long[dirCount];
+            int n = 0;
+            for (int d = 0; d < dirCount; d++) {
+                long mb = dirSize[d] / (1024 * 1024);
+                if (dirSize[d] > 0 && mb > min_dir_size)
+                    order[n++] = (mb << 32) | d;
+            }
+            Arrays.sort(order, 0, n);
+
+            long total_size = 0;
+
+            for (int i = n - 1; i >= 0; i--) {
+                long dirMB = order[i] >>> 32;
+                System.out.println(dirPath((int) order[i]) + ": " + dirMB + "MB = " + (dirMB * 100) / fullsize + "%");
+                total_size += dirMB;
+            }
+
+            System.out.println("Query covered " + (total_size * 100) / fullsize + "% out of all files.");
+        }
+
+        public void duplicates(long sizeKB, Vector<String> patterns) {
+
+            long minSize = sizeKB * 1024;
+            int sets = 0;
+
+            // files come sorted by size then content hash, so every duplicate set is a run
+            int i = 0;
+            while (i < fileCount && fileSize.get(i) > minSize) {
+
+                long size = fileSize.get(i);
+                long hash = fileContentHash.get(i);
+
+                int end = i + 1;
+                while (end < fileCount && fileSize.get(end) == size && fileContentHash.get(end) == hash)
+                    end++;
+
+                if (hash != 0 && end - i > 1) {
+
+                    int members = 0;
+                    for (int j = i; j < end; j++) {
+                        if (hasExtension(fileName.get(j), patterns))
+                            members++;
+                    }
+
+                    if (members > 1) {
+                        sets++;
+                        System.out.println("Duplicate set: " + members + " files [" + size / (1024 * 1024) + "MB]");
+                        for (int j = i; j < end; j++) {
+                            if (hasExtension(fileName.get(j), patterns))
+                                System.out.println(" --> " + dirPath(fileDir.get(j)) + File.separator + name(fileName.get(j)));
+                        }
+                    }
+                }
+
+                i = end;
+            }
+
+            System.out.println(sets + " duplicate sets.");
+        }
+
+        public void largest(int n, Vector<String> patterns) {
+
+            // the files are already in descending size order
+            for (int i = 0, found = 0; i < fileCount && found < n; i++) {
+                if (hasExtension(fileName.get(i), patterns)) {
+                    System.out.println(dirPath(fileDir.get(i)) + File.separator + name(fileName.get(i)) + ": " + formatSize(fileSize.get(i)));
+                    found++;
+                }
+            }
+        }
+
+        public void histogram(int top) {
+
+            // every distinct name is decoded once, the files only look their extension up
+            long[] nameKeys = new long[nameCount];
+            for (int id = 0; id < nameCount; id++)
+                nameKeys[id] = SizeHistogram.extensionKey(name(id));
+
+            SizeHistogram histogram = new SizeHistogram();
+            for (int i = 0; i < fileCount; i++) {
+                int name = fileName.get(i);
+                int slot = histogram.add(nameKeys[name], fileSize.get(i));
+                if (histogram.extNames[slot] == null)
+                    histogram.extNames[slot] = SizeHistogram.extension(name(name));
+            }
+
+            histogram.print(top);
+        }
+    }
+
+    /**
+     * Streamed, row oriented copy of the Directories / Files tables for moving an index or keeping its history.
+     * Directories come in PATH_ORDER, each followed by its files sorted by name; paths and names only store what
+     * differs from the previous one and numbers are varints, so two exports can be compared in a single pass.
+     */
+    private static class IndexDump {
+
+        private static final long MAGIC = 0x445544554D503031L; // "DUDUMP01"
+
+        private static final int DIRECTORY = 'D';
+        private static final int FILE = 'F';
+        private static final int END = 'E';
+
+        private static final int HAS_MOD_TIME = 1;
+        private static final int HAS_PARTIAL_HASH = 2;
+        private static final int HAS_CONTENT_HASH = 4;
+
+        /**
+         * Path order with the separator sorting before every other character, so that a directory is followed by
+         * its whole subtree and its parent is always one of the directories still open
+         */
+        static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int n = Math.min(a.length(), b.length());
+                for (int i = 0; i < n; i++) {
+                    char ca = a.charAt(i), cb = b.charAt(i);
+                    if (ca != cb)
+                        return (ca == File.separatorChar ? 0 : ca + 1) - (cb == File.separatorChar ? 0 : cb + 1);
+                }
+                return a.length() - b.length();
+            }
+        };
+
+        static boolean isBelow(String path, String dir) {
+            return path.startsWith(subtreeRange(dir)[0]);
+        }
+
+        static void writeVarLong(DataOutputStream out, long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        static long readVarLong(DataInputStream in) throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * Writes s as the length it shares with previous and the UTF-8 bytes of the rest
+         */
+        private static void writeString(DataOutputStream out, String previous, String s) throws IOException {
+
+            int shared = 0;
+            int n = Math.min(previous.length(), s.length());
+            while (shared < n && previous.charAt(shared) == s.charAt(shared))
+                shared++;
+            if (shared > 0 && Character.isHighSurrogate(s.charAt(shared - 1)))
+                shared--;
+
+            byte[] rest = s.substring(shared).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            writeVarLong(out, shared);
+            writeVarLong(out, rest.length);
+            out.write(rest);
+        }
+
+        private static String readString(DataInputStream in, String previous) throws IOException {
+            int shared = (int) readVarLong(in);
+            byte[] rest = new byte[(int) readVarLong(in)];
+            in.readFully(rest);
+            return previous.substring(0, shared) + new String(rest, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        private static long zigZag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        private static long unZigZag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /**
+         * Streams a dump back: nextDirectory() moves to the following directory, skipping what is left of the
+         * current one, and nextFile() walks the files of the current directory in name order
+         */
+        static class Reader implements Closeable {
+
+            private final DataInputStream in;
+            private int tag;
+
+            String dir = "";
+            long dirModTime;
+
+            String name = "";
+            long size;
+            long modTime;
+            Long partialHash;
+            String contentHash;
+
+            Reader(String file) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file)), 256 * 1024));
+                if (in.readLong() != MAGIC) {
+                    in.close();
+                    throw new IOException(file + " is not a DiskUtility export");
+                }
+                tag = in.readUnsignedByte();
+            }
+
+            boolean nextDirectory() throws IOException {
+
+                while (tag == FILE)
+                    nextFile();
+
+                if (tag != DIRECTORY)
+                    return false;
+
+                dir = readString(in, dir);
+                int flags = in.readUnsignedByte();
+                dirModTime = (flags & HAS_MOD_TIME) != 0 ? unZigZag(readVarLong(in)) : -1;
+                name = "";
+
+                tag = in.readUnsignedByte();
+                return true;
+            }
+
+            boolean nextFile() throws IOException {
+
+                if (tag != FILE)
+                    return false;
+
+                name = readString(in, name);
+                int flags = in.readUnsignedByte();
+                size = readVarLong(in);
+                modTime = (flags & HAS_MOD_TIME) != 0 ? unZigZag(readVarLong(in)) : -1;
+                partialHash = (flags & HAS_PARTIAL_HASH) != 0 ? in.readLong() : null;
+
+                if ((flags & HAS_CONTENT_HASH) != 0) {
+                    StringBuilder hex = new StringBuilder(64);
+                    for (int i = 0; i < 4; i++)
+                        hex.append(String.format("%016x", in.readLong()));
+                    contentHash = hex.toString();
+                } else {
+                    contentHash = null;
+                }
+
+                tag = in.readUnsignedByte();
+                return true;
+            }
+
+            /**
+             * @return true once the END tag was read, false when the directories ran out on anything else
+             */
+            boolean ended() {
+                return tag == END;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+
+        /**
+         * Reads a whole export without touching the database, so that a truncated or damaged one is refused
+         * before load deletes what it would replace
+         */
+        static void check(String file) throws IOException {
+
+            try (Reader in = new Reader(file)) {
+                String previous = null;
+                while (in.nextDirectory()) {
+                    if (previous != null && PATH_ORDER.compare(previous, in.dir) >= 0)
+                        throw new IOException(file + ": directories out of order at " + in.dir);
+                    previous = in.dir;
+                    while (in.nextFile()) ;
+                }
+                if (!in.ended())
+                    throw new IOException(file + " is damaged: no end mark after " + previous);
+            } catch (EOFException e) {
+                throw new IOException(file + " is truncated", e);
+            }
+        }
+
+        /**
+         * A directory to export, null modTime when it was never recorded
+         */
+        private static class ExportDirectory {
+            final String path;
+            final int id;
+            final Long modTime;
+
+            ExportDirectory(String path, int id, Long modTime) {
+                this.path = path;
+                this.id = id;
+                this.modTime = modTime;
+            }
+        }
+
+        /**
+         * A file to export, null for the columns that were never filled in
+         */
+        private static class ExportFile {
+            final String name;
+            final long size;
+            final Long modTime;
+            final Long partialHash;
+            final String contentHash;
+
+            ExportFile(String name, long size, Long modTime, Long partialHash, String contentHash) {
+                this.name = name;
+                this.size = size;
+                this.modTime = modTime;
+                this.partialHash = partialHash;
+                this.contentHash = contentHash;
+            }
+        }
+
+        /**
+         * Writes every directory in PATH_ORDER followed by its files in name order. Only the directory ids and paths
+         * are held in memory, the files are read one directory at a time.
+         */
+        public static void export(String file) throws IOException, SQLException {
+
+            long tm = System.currentTimeMillis();
+            List<ExportDirectory> dirs = new ArrayList<>();
+
+            try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT ID, DirPath, ModTime FROM Directories ORDER BY ID")) {
+                while (rs.next()) {
+                    long modTime = rs.getLong(3);
+                    dirs.add(new ExportDirectory(DirectoryPaths.path(rs.getInt(1), rs.getString(2)), rs.getInt(1), rs.wasNull() ? null : modTime));
+                }
+            }
+
+            Collections.sort(dirs, new Comparator<ExportDirectory>() {
+                @Override
+                public int compare(ExportDirectory a, ExportDirectory b) {
+                    return PATH_ORDER.compare(a.path, b.path);
+                }
+            });
+
+            Path target = Paths.get(file).toAbsolutePath();
+            Path tmp = Files.createTempFile(target.getParent(), "export", ".tmp");
+            long files = 0;
+
+            try (
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 256 * 1024));
+                    PreparedStatement ps_files = db().prepareStatement("SELECT FileName, Size, ModTime, PartialHash, ContentHash FROM Files WHERE DirectoryRef=?")
+            ) {
+                out.writeLong(MAGIC);
+                String previousDir = "";
+
+                for (ExportDirectory d : dirs) {
+
+                    out.writeByte(DIRECTORY);
+                    writeString(out, previousDir, d.path);
+                    previousDir = d.path;
+                    out.writeByte(d.modTime != null ? HAS_MOD_TIME : 0);
+                    if (d.modTime != null)
+                        writeVarLong(out, zigZag(d.modTime));
+
+                    List<ExportFile> dirFiles = new ArrayList<>();
+                    ps_files.setInt(1, d.id);
+                    try (ResultSet rs = ps_files.executeQuery()) {
+                        while (rs.next()) {
+                            long modTime = rs.getLong(3);
+                            Long mod = rs.wasNull() ? null : modTime;
+                            long partial = rs.getLong(4);
+                            dirFiles.add(new ExportFile(rs.getString(1), rs.getLong(2), mod, rs.wasNull() ? null : partial, rs.getString(5)));
+                        }
+                    }
+
+                    Collections.sort(dirFiles, new Comparator<ExportFile>() {
+                        @Override
+                        public int compare(ExportFile a, ExportFile b) {
+                            return a.name.compareTo(b.name);
+                        }
+                    });
+
+                    String previousName = "";
+                    for (ExportFile f : dirFiles) {
+
+                        String contentHash = f.contentHash;
+                        int flags = (f.modTime != null ? HAS_MOD_TIME : 0) | (f.partialHash != null ? HAS_PARTIAL_HASH : 0) |
+                                (contentHash != null && contentHash.trim().length() == 64 ? HAS_CONTENT_HASH : 0);
+
+                        out.writeByte(FILE);
+                        writeString(out, previousName, f.name);
+                        previousName = f.name;
+                        out.writeByte(flags);
+                        writeVarLong(out, f.size);
+                        if (f.modTime != null)
+                            writeVarLong(out, zigZag(f.modTime));
+                        if (f.partialHash != null)
+                            out.writeLong(f.partialHash);
+                        if ((flags & HAS_CONTENT_HASH) != 0) {
+                            for (int i = 0; i < 4; i++)
+                                out.writeLong(Long.parseUnsignedLong(contentHash.substring(i * 16, i * 16 + 16), 16));
+                        }
+                        files++;
+                    }
+                }
+
+                out.writeByte(END);
+            } catch (IOException | SQLException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            System.out.println("Exported " + dirs.size() + " directories, " + files + " files to " + target + ", " +
+                    Files.size(target) / 1024 + "KB [" + (System.currentTimeMillis() - tm) + "ms].");
+        }
+
+        /**
+         * Loads an export with batched inserts. The roots it contains replace whatever the database held under them.
+         */
+        public static void load(String file) throws IOException, SQLException {
+
+            long tm = System.currentTimeMillis();
+            long dirCount = 0, fileCount = 0;
+
+            DeleteDirectoryAction dda = new DeleteDirectoryAction();
+            AdaptiveBatching batching = new AdaptiveBatching();
+            Progress progress = new Progress("files", 0);
+            List<String> roots = new ArrayList<>();
+            Set<Integer> rootParents = new HashSet<>();
+
+            // the directories whose subtree is still being read, innermost last
+            Deque<String> openPaths = new ArrayDeque<>();
+            Deque<Integer> openIds = new ArrayDeque<>();
+
+            // the commits below keep the transaction log small, so the export has to be known good before anything is deleted
+            check(file);
+
+            int nextId = IndexDirectoryAction.getNextDirID();
+
+            try (
+                    Reader in = new Reader(file);
+                    PreparedStatement ps_dirInsert = db().prepareStatement("INSERT INTO Directories (ID, DirPath, ParentID, ModTime, Name) VALUES(?, ?, ?, ?, ?)");
+                    PreparedStatement ps_insert = db().prepareStatement("INSERT INTO Files(DirectoryRef, FileName, Size, NameHash, ModTime, PartialHash, ContentHash) VALUES (?, ?, ?, ?, ?, ?, ?)")
+            ) {
+                while (in.nextDirectory()) {
+
+                    while (!openPaths.isEmpty() && !isBelow(in.dir, openPaths.peekLast())) {
+                        openPaths.removeLast();
+                        openIds.removeLast();
+                    }
+
+                    int id = nextId++;
+                    int parent;
+
+                    if (openIds.isEmpty()) {
+                        // a root of the export: what was indexed there before goes away, its place under the parent stays
+                        ps_dirInsert.executeBatch();
+                        ps_insert.executeBatch();
+                        parent = dda.findAndDeleteDirAndChildren(Paths.get(in.dir));
+                        roots.add(in.dir);
+                        rootParents.add(parent);
+                    } else {
+                        parent = openIds.peekLast();
+                    }
+
+                    ps_dirInsert.setInt(1, id);
+                    if (DirectoryPaths.compact && parent != -1) {
+                        ps_dirInsert.setNull(2, Types.VARCHAR);
+                        ps_dirInsert.setString(5, DirectoryPaths.leaf(in.dir));
+                    } else {
+                        ps_dirInsert.setString(2, in.dir);
+                        ps_dirInsert.setNull(5, Types.VARCHAR);
+                    }
+                    if (parent != -1)
+                        ps_dirInsert.setInt(3, parent);
+                    else
+                        ps_dirInsert.setNull(3, Types.INTEGER);
+                    if (in.dirModTime != -1)
+                        ps_dirInsert.setLong(4, in.dirModTime);
+                    else
+                        ps_dirInsert.setNull(4, Types.BIGINT);
+                    ps_dirInsert.addBatch();
+                    dirCount++;
+
+                    openPaths.addLast(in.dir);
+                    openIds.addLast(id);
+
+                    boolean flush = batching.add();
+
+                    while (in.nextFile()) {
+
+                        ps_insert.setInt(1, id);
+                        ps_insert.setString(2, in.name);
+                        ps_insert.setLong(3, in.size);
+                        ps_insert.setInt(4, in.name.hashCode());
+                        if (in.modTime != -1)
+                            ps_insert.setLong(5, in.modTime);
+                        else
+                            ps_insert.setNull(5, Types.BIGINT);
+                        if (in.partialHash != null)
+                            ps_insert.setLong(6, in.partialHash);
+                        else
+                            ps_insert.setNull(6, Types.BIGINT);
+                        ps_insert.setString(7, in.contentHash);
+                        ps_insert.addBatch();
+
+                        progress.update(++fileCount);
+                        flush |= batching.add();
+                    }
+
+                    // the directory rows go first so that its files find it
+                    if (flush || batching.commitDue()) {
+                        long t = System.nanoTime();
+                        ps_dirInsert.executeBatch();
+                        ps_insert.executeBatch();
+                        batching.executed(System.nanoTime() - t);
+                    }
+
+                    if (batching.commitDue()) {
+                        long t = System.nanoTime();
+                        db().commit();
+                        batching.committed(System.nanoTime() - t);
+                    }
+                }
+
+                ps_dirInsert.executeBatch();
+                ps_insert.executeBatch();
+                db().commit();
+
+                SubtreeTotalsAction totals = new SubtreeTotalsAction();
+                for (String root : roots)
+                    totals.rollUp(root, false);
+                totals.recompute(rootParents);
+                db().commit();
+
+            } catch (IOException | SQLException e) {
+                db().rollback();
+                throw e;
+            }
+
+            DirectoryPaths.forget();
+            Metrics.count("import.directories", dirCount);
+            Metrics.count("import.files", fileCount);
+
+            System.out.println("Imported " + dirCount + " directories, " + fileCount + " files under " + roots.size() + " roots [" +
+                    (System.currentTimeMillis() - tm) + "ms].");
+        }
+
+        /**
+         * Growth of one directory in a diff, its own files plus its subdirectories once they are closed
+         */
+        private static class Growth {
+            final String path;
+            long bytes;
+            long files;
+
+            Growth(String path) {
+                this.path = path;
+            }
+        }
+
+        /**
+         * Merge-joins two exports in a single pass: directories in PATH_ORDER, then the files of a directory
+         * present in both by name. Prints the added, removed and resized files and the directories that grew
+         * or shrank the most, with their subdirectories included.
+         */
+        public static void diff(String fileA, String fileB, int top) throws IOException {
+
+            long tm = System.currentTimeMillis();
+            long added = 0, removed = 0, resized = 0, addedBytes = 0, removedBytes = 0, resizedBytes = 0;
+
+            final PriorityQueue<Growth> largest = new PriorityQueue<>(top + 1, new Comparator<Growth>() {
+                @Override
+                public int compare(Growth a, Growth b) {
+                    return Long.compare(Math.abs(a.bytes), Math.abs(b.bytes));
+                }
+            });
+            Deque<Growth> open = new ArrayDeque<>();
+
+            try (Reader a = new Reader(fileA); Reader b = new Reader(fileB)) {
+
+                boolean hasA = a.nextDirectory(), hasB = b.nextDirectory();
+
+                while (hasA || hasB) {
+
+                    int cmp = !hasA ? 1 : !hasB ? -1 : PATH_ORDER.compare(a.dir, b.dir);
+                    String dir = cmp <= 0 ? a.dir : b.dir;
+
+                    while (!open.isEmpty() && !isBelow(dir, open.peekLast().path))
+                        close(open, largest, top);
+                    Growth g = new Growth(dir);
+                    open.addLast(g);
+
+                    boolean fa = cmp <= 0 && a.nextFile(), fb = cmp >= 0 && b.nextFile();
+
+                    while (fa || fb) {
+
+                        int byName = !fa ? 1 : !fb ? -1 : a.name.compareTo(b.name);
+
+                        if (byName < 0) {
+                            System.out.println("- " + dir + File.separator + a.name + " " + a.size);
+                            removed++;
+                            removedBytes += a.size;
+                            g.bytes -= a.size;
+                            g.files--;
+                        } else if (byName > 0) {
+                            System.out.println("+ " + dir + File.separator + b.name + " " + b.size);
+                            added++;
+                            addedBytes += b.size;
+                            g.bytes += b.size;
+                            g.files++;
+                        } else if (a.size != b.size) {
+                            System.out.println("~ " + dir + File.separator + a.name + " " + a.size + " -> " + b.size);
+                            resized++;
+                            resizedBytes += b.size - a.size;
+                            g.bytes += b.size - a.size;
+                        }
+
+                        if (byName <= 0)
+                            fa = a.nextFile();
+                        if (byName >= 0)
+                            fb = b.nextFile();
+                    }
+
+                    if (cmp <= 0)
+                        hasA = a.nextDirectory();
+                    if (cmp >= 0)
+                        hasB = b.nextDirectory();
+                }
+            }
+
+            while (!open.isEmpty())
+                close(open, largest, top);
+
+            List<Growth> changes = new ArrayList<>(largest);
+            Collections.sort(changes, Collections.reverseOrder(largest.comparator()));
+
+            if (!changes.isEmpty())
+                System.out.println("Largest changes, subdirectories included:");
+            for (Growth g : changes)
+                System.out.println("  " + g.path + ": " + (g.bytes >= 0 ? "+" : "") + g.bytes / 1024 + "KB, " + (g.files >= 0 ? "+" : "") + g.files + " files");
+
+            System.out.println(added + " files added (" + addedBytes / 1024 + "KB), " + removed + " removed (" + removedBytes / 1024 + "KB), " +
+                    resized + " resized (" + (resizedBytes >= 0 ? "+" : "") + resizedBytes / 1024 + "KB) [" + (System.currentTimeMillis() - tm) + "ms].");
+        }
+
+        private static void close(Deque<Growth> open, PriorityQueue<Growth> largest, int top) {
+
+            Growth g = open.removeLast();
+            if (!open.isEmpty()) {
+                open.peekLast().bytes += g.bytes;
+                open.peekLast().files += g.files;
+            }
+
+            if (g.bytes == 0 && g.files == 0)
+                return;
+
+            largest.add(g);
+            if (largest.size() > top)
+                largest.poll();
+        }
+    }
+
+    /**
+     * Deterministic synthetic tree for benchmarks: width subdirectories per level, depth levels, filesPerDir files
+     * per directory with log-uniform sizes, and a share of files which are renamed copies of earlier ones.
+     */
+    private static class TreeGenerator {
+
+        private static final String[] EXTENSIONS = {"txt", "jpg", "mp3", "bin", "docx"};
+
+        int width = 4;
+        int depth = 3;
+        int filesPerDir = 20;
+        long minSize = 1024;
+        long maxSize = 256 * 1024;
+        double duplicateRatio = 0.1;
+        long seed = 42;
+
+        long dirs = 0;
+        long files = 0;
+        long duplicates = 0;
+        long bytes = 0;
+
+        private Random random;
+        private final List<Path> written = new ArrayList<>();
+        private byte[] buffer = new byte[64 * 1024];
+
+        TreeGenerator(Vector<String> params, int first) {
+            if (params.size() > first) width = Integer.parseInt(params.elementAt(first));
+            if (params.size() > first + 1) depth = Integer.parseInt(params.elementAt(first + 1));
+            if (params.size() > first + 2) filesPerDir = Integer.parseInt(params.elementAt(first + 2));
+            if (params.size() > first + 3) maxSize = Long.parseLong(params.elementAt(first + 3)) * 1024;
+            if (params.size() > first + 4) duplicateRatio = Double.parseDouble(params.elementAt(first + 4));
+            if (params.size() > first + 5) seed = Long.parseLong(params.elementAt(first + 5));
+            minSize = Math.min(minSize, maxSize);
+        }
+
+        public void generate(Path root) throws IOException {
+            random = new Random(seed);
+            written.clear();
+            generate(root, 0);
+        }
+
+        private void generate(Path dir, int level) throws IOException {
+
+            Files.createDirectories(dir);
+            dirs++;
+
+            for (int i = 0; i < filesPerDir; i++) {
+
+                Path file = dir.resolve("file" + files + "." + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+
+                if (!written.isEmpty() && random.nextDouble() < duplicateRatio) {
+                    Path original = written.get(random.nextInt(written.size()));
+                    Files.copy(original, file, StandardCopyOption.REPLACE_EXISTING);
+                    bytes += Files.size(file);
+                    duplicates++;
+                } else {
+                    // log-uniform between minSize and maxSize
+                    long size = (long) (minSize * Math.pow((double) maxSize / minSize, random.nextDouble()));
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        for (long left = size; left > 0; left -= buffer.length) {
+                            random.nextBytes(buffer);
+                            out.write(buffer, 0, (int) Math.min(left, buffer.length));
+                        }
+                    }
+                    bytes += size;
+                    written.add(file);
+                }
+
+                files++;
+            }
+
+            if (level < depth) {
+                for (int i = 0; i < width; i++)
+                    generate(dir.resolve("dir" + level + "_" + i), level + 1);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "width=" + width + " depth=" + depth + " filesPerDir=" + filesPerDir + " maxSizeKB=" + maxSize / 1024 +
+                    " duplicateRatio=" + duplicateRatio + " seed=" + seed;
+        }
+    }
+
+    /**
+     * Sharded mode: one database per indexed root, each opened by its own child process, so that roots on
+     * different disks are indexed and queried at the same time and the churn of one does not slow down the
+     * others. The roots and their databases are listed in the registry next to the database, named after it
+     * with REGISTRY appended, and the shards are created next to it too. The children print tab separated rows
+     * which are merged here.
+     */
+    private static class ShardAction {
+
+        static final String REGISTRY = "Shards.txt";
+
+        /**
+         * Set on the command line of the child processes
+         */
+        static final boolean CHILD = Boolean.getBoolean("diskutility.shard");
+
+        /**
+         * Set by --sharded for the commands that follow it
+         */
+        static boolean enabled = false;
+
+        private interface LineHandler {
+            void line(String shard, String line);
+        }
+
+        /**
+         * @return root to database name, in the order they were added
+         */
+        static Map<String, String> shards() throws IOException {
+
+            Map<String, String> shards = new LinkedHashMap<>();
+            Path registry = registry();
+            if (!Files.exists(registry))
+                return shards;
+
+            for (String line : Files.readAllLines(registry, java.nio.charset.StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    shards.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+            return shards;
+        }
+
+        /**
+         * Next to the database of this process, or in the working directory when it is in memory
+         */
+        private static Path registry() {
+            Path db = dbDirectory();
+            return db == null ? Paths.get(DB_NAME + REGISTRY) : db.resolveSibling(db.getFileName() + REGISTRY);
+        }
+
+        private static String register(String root) throws IOException {
+
+            Map<String, String> shards = shards();
+            String db = shards.get(root);
+            if (db != null)
+                return db;
+
+            // numbered in the order the roots are added, skipping names already taken
+            Path registry = registry();
+            String leaf = DirectoryPaths.leaf(root).replaceAll("[^A-Za-z0-9]", "");
+            String base = registry.getFileName().toString();
+            base = base.substring(0, base.length() - REGISTRY.length());
+            Collection<String> taken = shards.values();
+            for (int n = shards.size() + 1; db == null || taken.contains(db) || Files.exists(Paths.get(db)); n++)
+                db = registry.resolveSibling(base + "-" + leaf + "-" + n).toString();
+
+            Files.write(registry, Collections.singletonList(db + "\t" + root), java.nio.charset.StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return db;
+        }
+
+        /**
+         * Starts DiskUtility on every database with its arguments, all at once
+         */
+        private static Map<String, Process> start(Map<String, List<String>> commands) throws IOException {
+
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            Map<String, Process> processes = new LinkedHashMap<>();
+
+            for (Map.Entry<String, List<String>> e : commands.entrySet()) {
+
+                List<String> cmd = new ArrayList<>(Arrays.asList(java, "-Ddiskutility.db=" + e.getKey(), "-Ddiskutility.io=" + IoScheduler.spec(),
+                        "-Ddiskutility.shard=true", "-cp", System.getProperty("java.class.path"), DiskUtility.class.getName(), "--metrics", "off"));
+                cmd.addAll(e.getValue());
+
+                processes.put(e.getKey(), new ProcessBuilder(cmd).redirectErrorStream(true).start());
+            }
+
+            return processes;
+        }
+
+        private static void waitFor(Map<String, Process> processes) throws InterruptedException {
+
+            for (Map.Entry<String, Process> e : processes.entrySet()) {
+                if (e.getValue().waitFor() != 0)
+                    System.out.println(e.getKey() + " exited with " + e.getValue().exitValue());
+            }
+        }
+
+        /**
+         * Runs DiskUtility on every database with its arguments, all at once, and hands over their output line by line
+         */
+        private static void fanOut(Map<String, List<String>> commands, final LineHandler handler) throws IOException, InterruptedException {
+
+            List<Thread> readers = new ArrayList<>();
+            Map<String, Process> processes = start(commands);
+
+            for (Map.Entry<String, Process> e : processes.entrySet()) {
+
+                final String shard = e.getKey();
+                final Process process = e.getValue();
+
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                            String line;
+                            while ((line = in.readLine()) != null) {
+                                synchronized (handler) {
+                                    handler.line(shard, line);
+                                }
+                            }
+                        } catch (IOException ex) {
+                            System.out.println(shard + ": " + ex.toString());
+                        }
+                    }
+                }, "DiskUtility-shard-" + shard);
+                reader.start();
+                readers.add(reader);
+            }
+
+            for (Thread reader : readers)
+                reader.join();
+
+            waitFor(processes);
+        }
+
+        private static Map<String, List<String>> onAllShards(String... args) throws IOException {
+
+            Map<String, List<String>> commands = new LinkedHashMap<>();
+            for (String db : shards().values())
+                commands.put(db, Arrays.asList(args));
+
+            if (commands.isEmpty())
+                System.out.println("No shards yet, index with: --sharded --updateDb dir1 dir2 ...");
+            return commands;
+        }
+
+        private static String[] concat(String[] args, List<String> more) {
+            List<String> all = new ArrayList<>(Arrays.asList(args));
+            all.addAll(more);
+            return all.toArray(new String[0]);
+        }
+
+        /**
+         * --updateDb or --refreshDb of every root on its own shard, all at once
+         */
+        static void index(String command, Vector<String> directories) throws IOException, InterruptedException {
+
+            long tm = System.currentTimeMillis();
+            Map<String, List<String>> commands = new LinkedHashMap<>();
+            final Map<String, String> labels = new HashMap<>();
+
+            for (String dir : directories) {
+                String root = Paths.get(dir).toFile().getCanonicalPath();
+                String db = register(root);
+                commands.put(db, Arrays.asList(command, root));
+                labels.put(db, DirectoryPaths.leaf(root));
+            }
+
+            fanOut(commands, new LineHandler() {
+                public void line(String shard, String line) {
+                    System.out.println("[" + labels.get(shard) + "] " + line);
+                }
+            });
+
+            System.out.println(commands.size() + " shards in " + ((double) (System.currentTimeMillis() - tm)) / 1000.0 + "s.");
+        }
+
+        static void locate(Vector<String> terms) throws IOException, InterruptedException {
+
+            fanOut(onAllShards(concat(new String[]{"--locate"}, terms)), new LineHandler() {
+                public void line(String shard, String line) {
+                    System.out.println(line);
+                }
+            });
+        }
+
+        static void usageTree(String dir, String depth) throws IOException, InterruptedException {
+
+            String path = Paths.get(dir).toFile().getCanonicalPath();
+
+            // the shard of the deepest root containing dir
+            String db = null, root = null;
+            for (Map.Entry<String, String> e : shards().entrySet()) {
+                String r = e.getKey();
+                if ((path.equals(r) || path.startsWith(subtreeRange(r)[0])) && (root == null || r.length() > root.length())) {
+                    root = r;
+                    db = e.getValue();
+                }
+            }
+
+            if (db == null) {
+                System.out.println(dir + " is not in any shard.");
+                return;
+            }
+
+            fanOut(Collections.singletonMap(db, Arrays.asList("--usage", path, depth)), new LineHandler() {
+                public void line(String shard, String line) {
+                    System.out.println(line);
+                }
+            });
+        }
+
+        /**
+         * Merges the rows of the shards, each sorted by size, as they come: only one row per shard is held here
+         */
+        static void usage(int minSizeMB) throws IOException, InterruptedException {
+
+            Map<String, Process> processes = start(onAllShards("--shardQuery", "usage", Integer.toString(minSizeMB)));
+
+            final List<String> shards = new ArrayList<>(processes.keySet());
+            final List<BufferedReader> readers = new ArrayList<>();
+            final long[] sizes = new long[shards.size()];
+            final String[] dirs = new String[shards.size()];
+            long total = 0;
+
+            PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(shards.size(), 1), new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(sizes[b], sizes[a]);
+                }
+            });
+
+            try {
+                for (int i = 0; i < shards.size(); i++) {
+                    readers.add(new BufferedReader(new InputStreamReader(processes.get(shards.get(i)).getInputStream())));
+                    // every shard prints its total before its rows
+                    total += nextUsageRow(i, shards, readers, sizes, dirs, heads);
+                }
+
+                long fullsize = Math.max(total / (1024 * 1024), 1);
+                long covered = 0;
+
+                while (!heads.isEmpty()) {
+                    int i = heads.poll();
+                    System.out.println(dirs[i] + ": " + sizes[i] + "MB = " + (sizes[i] * 100) / fullsize + "%");
+                    covered += sizes[i];
+                    nextUsageRow(i, shards, readers, sizes, dirs, heads);
+                }
+
+                System.out.println("Query covered " + (covered * 100) / fullsize + "% out of all files.");
+            } finally {
+                for (BufferedReader reader : readers)
+                    reader.close();
+            }
+
+            waitFor(processes);
+        }
+
+        /**
+         * Reads the next row of shard i into sizes and dirs and queues it, printing what is not a row
+         *
+         * @return the bytes of the #total lines read on the way
+         */
+        private static long nextUsageRow(int i, List<String> shards, List<BufferedReader> readers, long[] sizes, String[] dirs,
+                                         PriorityQueue<Integer> heads) throws IOException {
+
+            long total = 0;
+            String line;
+
+            while ((line = readers.get(i).readLine()) != null) {
+                String[] cols = line.split("\t", 2);
+                if (cols.length < 2) {
+                    System.out.println(shards.get(i) + ": " + line);
+                } else if (cols[0].equals("#total")) {
+                    total += Long.parseLong(cols[1]);
+                } else {
+                    sizes[i] = Long.parseLong(cols[0]);
+                    dirs[i] = cols[1];
+                    heads.add(i);
+                    break;
+                }
+            }
+
+            return total;
+        }
+
+        /**
+         * Duplicates across all shards in three rounds, each one narrowing what the next one reads: sizes found more
+         * than once overall, then the partial hashes of those, then the full hashes where partial hashes collide
+         */
+        static void duplicates(long sizeKB, Vector<String> patterns) throws IOException, InterruptedException {
+
+            long tm = System.currentTimeMillis();
+
+            final Map<Long, Long> sizes = new HashMap<>();
+            fanOut(onAllShards(concat(new String[]{"--shardQuery", "sizes", Long.toString(sizeKB)}, patterns)), new LineHandler() {
+                public void line(String shard, String line) {
+                    String[] cols = line.split("\t");
+                    if (cols.length != 2) {
+                        System.out.println(shard + ": " + line);
+                        return;
+                    }
+                    Long size = Long.parseLong(cols[0]);
+                    Long count = sizes.get(size);
+                    sizes.put(size, (count == null ? 0 : count) + Long.parseLong(cols[1]));
+                }
+            });
+
+            List<String> candidateSizes = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : sizes.entrySet()) {
+                if (e.getValue() > 1)
+                    candidateSizes.add(e.getKey().toString());
+            }
+
+            Path sizesFile = Files.createTempFile("DiskUtility-sizes", ".txt");
+            Path keysFile = Files.createTempFile("DiskUtility-keys", ".txt");
+
+            try {
+                Files.write(sizesFile, candidateSizes, java.nio.charset.StandardCharsets.UTF_8);
+
+                final Map<String, Integer> partials = new HashMap<>();
+                fanOut(onAllShards(concat(new String[]{"--shardQuery", "partial", sizesFile.toString()}, patterns)), new LineHandler() {
+                    public void line(String shard, String line) {
+                        String[] cols = line.split("\t", 4);
+                        if (cols.length != 4) {
+                            System.out.println(shard + ": " + line);
+                            return;
+                        }
+                        String key = cols[0] + ":" + cols[1];
+                        Integer count = partials.get(key);
+                        partials.put(key, (count == null ? 0 : count) + 1);
+                    }
+                });
+
+                List<String> keys = new ArrayList<>();
+                for (Map.Entry<String, Integer> e : partials.entrySet()) {
+                    if (e.getValue() > 1)
+                        keys.add(e.getKey());
+                }
+                Files.write(keysFile, keys, java.nio.charset.StandardCharsets.UTF_8);
+
+                final Map<String, List<String>> sets = new TreeMap<>(Collections.reverseOrder(new Comparator<String>() {
+                    public int compare(String a, String b) {
+                        int bySize = Long.compare(Long.parseLong(a.substring(0, a.indexOf(':'))), Long.parseLong(b.substring(0, b.indexOf(':'))));
+                        return bySize != 0 ? bySize : a.compareTo(b);
+                    }
+                }));
+                fanOut(onAllShards(concat(new String[]{"--shardQuery", "full", keysFile.toString()}, patterns)), new LineHandler() {
+                    public void line(String shard, String line) {
+                        String[] cols = line.split("\t", 4);
+                        if (cols.length != 4) {
+                            System.out.println(shard + ": " + line);
+                            return;
+                        }
+                        if (cols[2].equals("-"))
+                            return;
+                        String key = cols[0] + ":" + cols[2];
+                        List<String> members = sets.get(key);
+                        if (members == null)
+                            sets.put(key, members = new ArrayList<>());
+                        members.add(cols[3]);
+                    }
+                });
+
+                long count = 0, reclaimable = 0;
+                for (Map.Entry<String, List<String>> e : sets.entrySet()) {
+                    List<String> members = e.getValue();
+                    if (members.size() < 2)
+                        continue;
+
+                    long size = Long.parseLong(e.getKey().substring(0, e.getKey().indexOf(':')));
+                    System.out.println("Duplicate set: " + members.size() + " files [" + size / (1024 * 1024) + "MB]");
+                    for (String member : members)
+                        System.out.println(" --> " + member);
+
+                    count++;
+                    reclaimable += size * (members.size() - 1);
+                }
+
+                System.out.println(count + " duplicate sets across " + shards().size() + " shards, " + reclaimable / (1024 * 1024) +
+                        "MB in extra copies [" + (System.currentTimeMillis() - tm) + "ms].");
+
+            } finally {
+                Files.deleteIfExists(sizesFile);
+                Files.deleteIfExists(keysFile);
+            }
+        }
+
+        /**
+         * The rows the parent merges, read from the database of this process
+         */
+        static void query(Vector<String> params) throws SQLException, IOException {
+
+            String kind = params.elementAt(0);
+            Vector<String> patterns = new Vector<>(params.subList(Math.min(2, params.size()), params.size()));
+
+            switch (kind) {
+
+                case "usage": {
+                    try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery(
+                            "SELECT SUM(TotalSize) FROM Directories WHERE ParentID IS NULL")) {
+                        rs.next();
+                        System.out.println("#total\t" + rs.getLong(1));
+                    }
+                    try (PreparedStatement ps = db().prepareStatement("SELECT file.Size, d.DirPath, d.ID FROM " +
+                            "(SELECT SUM(f.Size) / (1024 * 1024) AS Size, f.DirectoryRef AS DirRef FROM Files f GROUP BY f.DirectoryRef) file, Directories d " +
+                            "WHERE file.DirRef = d.ID AND file.Size > ? ORDER BY file.Size DESC")) {
+                        ps.setInt(1, Integer.parseInt(params.elementAt(1)));
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next())
+                                System.out.println(rs.getLong(1) + "\t" + DirectoryPaths.path(rs.getInt(3), rs.getString(2)));
+                        }
+                    }
+                    break;
+                }
+
+                case "sizes": {
+                    try (PreparedStatement ps = db().prepareStatement("SELECT f.Size, COUNT(*) FROM Files f WHERE f.Size > ?" +
+                            patternFilter("f", patterns) + " GROUP BY f.Size")) {
+                        ps.setLong(1, Long.parseLong(params.elementAt(1)) * 1024);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next())
+                                System.out.println(rs.getLong(1) + "\t" + rs.getLong(2));
+                        }
+                    }
+                    break;
+                }
+
+                case "partial":
+                case "full": {
+                    Set<String> keys = null;
+                    Set<Long> sizes = new TreeSet<>();
+                    List<String> lines = Files.readAllLines(Paths.get(params.elementAt(1)), java.nio.charset.StandardCharsets.UTF_8);
+
+                    if (kind.equals("full")) {
+                        keys = new HashSet<>(lines);
+                        for (String key : keys)
+                            sizes.add(Long.parseLong(key.substring(0, key.indexOf(':'))));
+                    } else {
+                        for (String size : lines)
+                            sizes.add(Long.parseLong(size));
+                    }
+
+                    new ContentHashAction().hashForMerge(sizes, keys, patterns);
+                    break;
+                }
+
+                default:
+                    System.out.println("Unknown shard query: " + kind);
+            }
+        }
+    }
+
+    /**
+     * --serve: one process keeping the database and the prepared statements warm, running the commands sent by
+     * --client over a Unix domain socket and streaming their output back. The actions share the connection and
+     * their statements, so the commands run one at a time under LOCK; a --watch sent to the server gives the lock
+     * up while it waits for file system events, so the queries of other clients run between its batches.
+     */
+    private static class ServerAction {
+
+        static final String SOCKET = System.getProperty("diskutility.socket", "DiskUtility.sock");
+
+        static final java.util.concurrent.locks.ReentrantLock LOCK = new java.util.concurrent.locks.ReentrantLock(true);
+
+        /**
+         * Commands which only read the database. A client sending nothing else does not wait for LOCK: it runs
+         * next to the others on a read-only connection of its own, which reads committed rows only, so that the
+         * directories it caches in DirectoryPaths are never ones an indexer rolls back. Their metrics are not
+         * recorded, as the ones of the command holding LOCK are being collected at the same time. --export stays
+         * under LOCK: it reads the whole index and has to see it in one state.
+         */
+        static final Set<String> READ_ONLY = new HashSet<>(Arrays.asList("--locate", "--usage", "--histogram", "--largest"));
+
+        /**
+         * Commands changing what the read-only commands read; the clients sending them hold SETTINGS exclusively
+         * while they run, the read-only clients hold it shared
+         */
+        static final Set<String> SHARED_SETTINGS = new HashSet<>(Arrays.asList("--fromSnapshot", "--sharded"));
+
+        static final java.util.concurrent.locks.ReentrantReadWriteLock SETTINGS = new java.util.concurrent.locks.ReentrantReadWriteLock(true);
+
+        /**
+         * Where System.out goes for the thread running the commands of a client, and for the threads they start
+         */
+        private static final InheritableThreadLocal<OutputStream> clientOutput = new InheritableThreadLocal<>();
+
+        private static class RoutedOutput extends OutputStream {
+
+            private final OutputStream console;
+
+            RoutedOutput(OutputStream console) {
+                this.console = console;
+            }
+
+            private OutputStream target() {
+                OutputStream out = clientOutput.get();
+                return out != null ? out : console;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                target().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                target().write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                target().flush();
+            }
+        }
+
+        /**
+         * Lets the commands of other clients run while the current thread waits
+         *
+         * @return what to hand to reclaim() when done waiting; no holds when not serving
+         */
+        static int[] release() {
+            int[] holds = {LOCK.getHoldCount(), SETTINGS.getWriteHoldCount()};
+            for (int i = 0; i < holds[1]; i++)
+                SETTINGS.writeLock().unlock();
+            for (int i = 0; i < holds[0]; i++)
+                LOCK.unlock();
+            return holds;
+        }
+
+        static void reclaim(int[] holds) {
+            for (int i = 0; i < holds[0]; i++)
+                LOCK.lock();
+            for (int i = 0; i < holds[1]; i++)
+                SETTINGS.writeLock().lock();
+        }
+
+        /**
+         * @return true when every command of the client is in READ_ONLY
+         */
+        static boolean readOnly(String[] args) {
+            boolean commands = false;
+            for (String arg : args) {
+                if (arg.startsWith("--")) {
+                    if (!READ_ONLY.contains(arg))
+                        return false;
+                    commands = true;
+                }
+            }
+            return commands;
+        }
+
+        private java.nio.channels.ServerSocketChannel server;
+
+        void serve(String socket) throws IOException, InterruptedException {
+
+            Path path = Paths.get(socket).toAbsolutePath();
+
+            if (Files.exists(path)) {
+                try {
+                    java.nio.channels.SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+                    System.out.println("A server is already listening on " + path);
+                    return;
+                } catch (IOException stale) {
+                    // left behind by a server which did not stop cleanly
+                    Files.delete(path);
+                }
+            }
+
+            db();
+            try {
+                // the read-only clients cannot write the totals missing in databases indexed before they existed
+                SubtreeTotalsAction.rollUpMissingRoots();
+            } catch (SQLException e) {
+                System.out.println(e.toString());
+            }
+
+            server = java.nio.channels.ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+            try {
+                // the clients can delete files with --dedupeRun; only the owner may connect
+                Files.setPosixFilePermissions(path, java.nio.file.attribute.PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException notPosix) {
+            }
+
+            System.setOut(new PrintStream(new RoutedOutput(System.out), true, "UTF-8"));
+            // nobody answers the prompts of --duplicates, they move to the next file
+            System.setIn(new BenchmarkAction.DoNothingInput());
+
+            System.out.println("Serving on " + path + ". Stop with: --client --stop");
+
+            try {
+                while (true) {
+                    final java.nio.channels.SocketChannel client;
+                    try {
+                        client = server.accept();
+                    } catch (java.nio.channels.ClosedChannelException stopped) {
+                        break;
+                    }
+
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(client);
+                        }
+                    }, "DiskUtility-client");
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        private void handle(java.nio.channels.SocketChannel client) {
+
+            try (java.nio.channels.SocketChannel ch = client) {
+
+                if (!fromOwner(ch))
+                    return;
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = in.readUTF();
+
+                clientOutput.set(new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024));
+
+                if (args.length == 1 && args[0].equals("--stop")) {
+                    // never given back: whatever still runs in the background waits here until the process exits
+                    LOCK.lock();
+                    System.out.println("Stopped.");
+                    System.out.flush();
+                    server.close();
+                    return;
+                }
+
+                if (readOnly(args)) {
+                    runReadOnly(args);
+                    System.out.flush();
+                    return;
+                }
+
+                boolean exclusive = false;
+                for (String arg : args)
+                    exclusive |= SHARED_SETTINGS.contains(arg);
+
+                // the settings of a client are for its own commands only
+                Snapshot fromSnapshot = snapshot;
+                boolean sharded = ShardAction.enabled;
+                int parallelism = IndexDirectoryAction.parallelism;
+                String metricsFile = Metrics.file;
+                Map<String, IoScheduler.Limit> ioLimits = IoScheduler.limits;
+
+                LOCK.lock();
+                if (exclusive)
+                    SETTINGS.writeLock().lock();
+                try {
+                    runCommands(args);
+                } catch (Exception e) {
+                    System.out.println(e.toString());
+                } finally {
+                    snapshot = fromSnapshot;
+                    ShardAction.enabled = sharded;
+                    IndexDirectoryAction.parallelism = parallelism;
+                    Metrics.file = metricsFile;
+                    IoScheduler.limits = ioLimits;
+                    if (exclusive)
+                        SETTINGS.writeLock().unlock();
+                    LOCK.unlock();
+                }
+
+                System.out.flush();
+
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            } finally {
+                clientOutput.remove();
+            }
+        }
+
+        /**
+         * Runs the commands on a connection of their own, without waiting for the other clients
+         */
+        private static void runReadOnly(String[] args) {
+
+            SETTINGS.readLock().lock();
+            try (Connection own = DriverManager.getConnection(dbUrl)) {
+                own.setAutoCommit(false);
+                own.setReadOnly(true);
+                own.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                readConnection.set(own);
+                Metrics.skipped.set(Boolean.TRUE);
+                try {
+                    runCommands(args);
+                } finally {
+                    Metrics.skipped.remove();
+                    readConnection.remove();
+                    DirectoryPaths.closed(own);
+                    own.rollback();
+                }
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            } finally {
+                SETTINGS.readLock().unlock();
+            }
+        }
+
+        /**
+         * The permissions of the socket keep the other users out; where the peer is known, it is checked as well
+         */
+        private static boolean fromOwner(java.nio.channels.SocketChannel ch) {
+            try {
+                jdk.net.UnixDomainPrincipal peer = ch.getOption(jdk.net.ExtendedSocketOptions.SO_PEERCRED);
+                if (peer.user().getName().equals(System.getProperty("user.name")))
+                    return true;
+                System.out.println("Refused a client of " + peer.user().getName());
+                return false;
+            } catch (UnsupportedOperationException | IOException unknown) {
+                return true;
+            }
+        }
+
+        /**
+         * Sends the arguments to the server and copies what comes back to the console
+         */
+        static void client(String socket, String[] args) throws IOException {
+
+            try (java.nio.channels.SocketChannel ch = java.nio.channels.SocketChannel.open(UnixDomainSocketAddress.of(Paths.get(socket).toAbsolutePath()))) {
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+                out.writeInt(args.length);
+                for (String arg : args)
+                    out.writeUTF(arg);
+                out.flush();
+
+                InputStream in = Channels.newInputStream(ch);
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    System.out.write(buffer, 0, n);
+                    System.out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the main commands against a generated tree indexed in the current database and records the timings
+     * of every iteration in a JSON file, so that runs before and after a change can be compared.
+     */
+    private static class BenchmarkAction {
+
+        private final List<String> results = new ArrayList<>();
+        private final int iterations;
+
+        /**
+         * Answers "do nothing" to every question asked by --duplicates
+         */
+        private static class DoNothingInput extends InputStream {
+            private int pos = 0;
+
+            @Override
+            public int read() {
+                return (pos++ & 1) == 0 ? '0' : '\n';
+            }
+        }
+
+        BenchmarkAction(int iterations) {
+            this.iterations = iterations;
+        }
+
+        private interface Body {
+            void run() throws Exception;
+        }
+
+        /**
+         * One warm-up run, then the measured iterations; setUp runs untimed before each of them
+         */
+        private void measure(String name, long items, Body setUp, Body body) throws Exception {
 
-                    if (!new File(s).exists() || !new File(s).isDirectory())
-                        return null;
+            PrintStream out = System.out;
+            InputStream in = System.in;
+
+            long[] ms = new long[iterations];
+
+            try {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                System.setIn(new DoNothingInput());
+
+                for (int i = -1; i < iterations; i++) {
+                    if (setUp != null)
+                        setUp.run();
+                    long tm = System.nanoTime();
+                    body.run();
+                    db().commit();
+                    if (i >= 0)
+                        ms[i] = (System.nanoTime() - tm) / 1000000;
+                }
+            } finally {
+                System.setOut(out);
+                System.setIn(in);
+            }
+
+            long min = Long.MAX_VALUE, sum = 0;
+            StringBuilder json = new StringBuilder();
+            json.append("    {\"benchmark\": \"").append(name).append("\", \"items\": ").append(items).append(", \"ms\": [");
+            for (int i = 0; i < iterations; i++) {
+                json.append(i > 0 ? ", " : "").append(ms[i]);
+                min = Math.min(min, ms[i]);
+                sum += ms[i];
+            }
+            double mean = (double) sum / iterations;
+            json.append("], \"meanMs\": ").append(mean).append(", \"minMs\": ").append(min)
+                    .append(", \"itemsPerSecond\": ").append(mean > 0 ? (long) (items * 1000 / mean) : 0).append("}");
+            results.add(json.toString());
+
+            System.out.println(String.format("%-24s mean %10.1fms  min %8dms", name, mean, min));
+        }
 
-                    for (Pair<String, Integer> ps : folderActions) {
-                        if (ps.fst.equals(s)) {
-                            ps.snd = action;
-                            return s;
+        /**
+         * Folder rule lookups against the linear prefix scan --duplicates used before FolderRules
+         */
+        private void measureFolderRules(int ruleCount, int lookupCount) throws Exception {
+
+            Random random = new Random(ruleCount);
+
+            final List<String> folders = new ArrayList<>();
+            final FolderRules<Integer> rules = new FolderRules<>();
+            for (int i = 0; i < ruleCount; i++) {
+                StringBuilder folder = new StringBuilder();
+                for (int depth = 3 + random.nextInt(6); depth > 0; depth--)
+                    folder.append(File.separator).append("dir").append(random.nextInt(20));
+                folders.add(folder.toString());
+                rules.put(folder.toString(), i, i % 2 == 0);
+            }
+
+            final String[] lookups = new String[lookupCount];
+            for (int i = 0; i < lookupCount; i++) {
+                String folder = folders.get(random.nextInt(ruleCount));
+                lookups[i] = i % 2 == 0 ? folder + File.separator + "sub" + random.nextInt(10) : "/other" + folder;
+            }
+
+            final long[] found = {0};
+
+            measure("folderRulesTrie", lookupCount, null, new Body() {
+                public void run() {
+                    for (String path : lookups) {
+                        if (rules.get(path) != null)
+                            found[0]++;
+                    }
+                }
+            });
+
+            measure("folderRulesLinearScan", lookupCount, null, new Body() {
+                public void run() {
+                    for (String path : lookups) {
+                        for (String folder : folders) {
+                            if (path.startsWith(folder)) {
+                                found[0]++;
+                                break;
+                            }
                         }
                     }
-                    folderActions.addFirst(new Pair<>(s, action));
-                    return s;
                 }
-            }
+            });
+        }
 
-            FolderActions folder_action = new FolderActions();
+        public void run(final String dir, TreeGenerator generator, String jsonFile) throws Exception {
 
-            String patternSearch = "";
-            if (patterns.size() > 0) {
-                patternSearch += " AND (f1.FileName LIKE '%." + patterns.elementAt(0);
+            final Path root = Paths.get(dir).toAbsolutePath();
+
+            if (!Files.exists(root)) {
+                System.out.println("Generating " + root + ": " + generator);
+                generator.generate(root);
+                System.out.println(generator.dirs + " directories, " + generator.files + " files (" + generator.duplicates +
+                        " copies), " + generator.bytes / (1024 * 1024) + "MB.");
+            }
 
-                for (int i = 1; i < patterns.size(); i++)
-                    patternSearch += "' OR f1.FileName LIKE '%." + patterns.elementAt(i);
+            final Vector<String> roots = new Vector<>(Collections.singletonList(root.toString()));
 
-                patternSearch += "')";
+            long files;
+            try (PreparedStatement ps = db().prepareStatement("SELECT TotalFiles FROM Directories WHERE ID=?")) {
+                updateDb(roots);
+                ps.setInt(1, DirectoryPaths.find(root.toString()));
+                ResultSet rs = ps.executeQuery();
+                files = rs.next() ? rs.getLong(1) : 0;
+                rs.close();
             }
 
-            try (PreparedStatement ps_listDuplicates = c.prepareStatement(
-                    "SELECT d1.DirPath, f1.FileName, d2.DirPath, f1.Size / (1024*1024), f1.ID, f2.ID, d1.ID, d2.ID FROM Directories d1, Files f1, Directories d2, Files F2 WHERE " +
-                            "f1.Size > ? AND f1.Size=f2.Size AND f1.ID < f2.ID AND f1.FileName = f2.FileName AND d1.ID = f1.DirectoryRef AND d2.ID = f2.DirectoryRef" +
-                            patternSearch
-            )) {
-                ps_listDuplicates.setLong(1, sizeKB * 1024);
-                ResultSet rs = ps_listDuplicates.executeQuery();
+            final int parallelism = IndexDirectoryAction.parallelism;
 
-                while (rs.next()) {
+            IndexDirectoryAction.parallelism = 0;
+            measure("updateDb", files, null, new Body() {
+                public void run() {
+                    updateDb(roots);
+                }
+            });
 
-                    String folderLeft = rs.getString(1);
-                    String folderRight = rs.getString(3);
-                    String fileName = rs.getString(2);
+            IndexDirectoryAction.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+            measure("updateDbParallel", files, null, new Body() {
+                public void run() {
+                    updateDb(roots);
+                }
+            });
+            IndexDirectoryAction.parallelism = parallelism;
 
-                    if (!fileExists(folderLeft, fileName) ||
-                        !fileExists(folderRight, fileName)) {
-                        continue;
+            measure("refreshDbUnchanged", files, null, new Body() {
+                public void run() {
+                    refreshDb(roots);
+                }
+            });
+
+            measure("removeDb", files, new Body() {
+                public void run() {
+                    updateDb(roots);
+                }
+            }, new Body() {
+                public void run() {
+                    removeDb(roots);
+                }
+            });
+
+            updateDb(roots);
+
+            // the database holds only the generated tree, and cold means the hash cache is empty too
+            measure("duplicatesColdHashes", files, new Body() {
+                public void run() throws SQLException {
+                    try (Statement s = db().createStatement()) {
+                        s.executeUpdate("UPDATE Files SET PartialHash = NULL, ContentHash = NULL");
                     }
+                    new HashCache().flush(0);
+                }
+            }, new Body() {
+                public void run() {
+                    duplicates(new Vector<String>());
+                }
+            });
+
+            measure("duplicates", files, null, new Body() {
+                public void run() {
+                    duplicates(new Vector<String>());
+                }
+            });
+
+            measure("locateTrigram", files, null, new Body() {
+                public void run() {
+                    locate(new Vector<>(Arrays.asList("file1", "mp3")));
+                }
+            });
+
+            measure("locateScan", files, null, new Body() {
+                public void run() {
+                    locate(new Vector<>(Collections.singletonList("e1")));
+                }
+            });
+
+            measure("usageTree", files, null, new Body() {
+                public void run() {
+                    usage(new Vector<>(Arrays.asList(root.toString(), "3")));
+                }
+            });
+
+            measure("usageByDirectory", files, null, new Body() {
+                public void run() {
+                    usage(new Vector<String>());
+                }
+            });
+
+            measureFolderRules(10000, 100000);
+
+            try (Writer w = Files.newBufferedWriter(Paths.get(jsonFile), java.nio.charset.StandardCharsets.UTF_8)) {
+                w.write("{\n  \"tree\": \"" + root.toString().replace("\\", "\\\\") + "\",\n  \"files\": " + files +
+                        ",\n  \"iterations\": " + iterations + ",\n  \"timestamp\": " + System.currentTimeMillis() + ",\n  \"results\": [\n");
+                for (int i = 0; i < results.size(); i++)
+                    w.write(results.get(i) + (i < results.size() - 1 ? ",\n" : "\n"));
+                w.write("  ]\n}\n");
+            }
+
+            System.out.println("Results written to " + jsonFile);
+        }
+    }
+
+    /**
+     * Schema changes made after the first version of the tables. They are applied on top of prepareDb and
+     * on start-up for databases created by older versions; statements already applied simply fail.
+     */
+    private static final String[] SCHEMA_UPGRADES = {
+            "ALTER TABLE Files ADD COLUMN PartialHash BIGINT",
+            "ALTER TABLE Files ADD COLUMN ContentHash CHAR(64)",
+            "CREATE INDEX FileSizeContentHashIDX ON Files (Size, ContentHash)",
+            "ALTER TABLE Directories ADD COLUMN ModTime BIGINT",
+            "ALTER TABLE Files ADD COLUMN ModTime BIGINT",
+            "ALTER TABLE Directories ADD COLUMN TotalSize BIGINT",
+            "ALTER TABLE Directories ADD COLUMN TotalFiles BIGINT",
+            "ALTER TABLE Directories ADD COLUMN TotalDirs BIGINT",
+            "CREATE TABLE IndexState(Name VARCHAR(128) NOT NULL PRIMARY KEY, Val BIGINT)",
+            "CREATE TABLE NameTrigrams(Trigram BIGINT NOT NULL, FirstID INT NOT NULL, IdCount INT, Postings BLOB, PRIMARY KEY (Trigram, FirstID))",
+            "ALTER TABLE Directories ADD COLUMN Name VARCHAR(255)",
+            "CREATE INDEX DirectoryChildIDX ON Directories (ParentID, Name)",
+            // Derby only scans indexes forward: a descending index lets ORDER BY Size DESC stream without a sort,
+            // and serves the size lookups of FileSizeIDX as well
+            "CREATE INDEX FileSizeDescIDX ON Files (Size DESC)",
+            "DROP INDEX FileSizeIDX",
+            "ALTER TABLE Directories ADD COLUMN Fingerprint BIGINT",
+            "CREATE INDEX DirectoryFingerprintIDX ON Directories (Fingerprint)",
+            "CREATE TABLE HashCache(Device BIGINT NOT NULL, Inode BIGINT NOT NULL, Size BIGINT NOT NULL, ModTime BIGINT NOT NULL, " +
+                    "PartialHash BIGINT, ContentHash CHAR(64), LastUsed BIGINT NOT NULL, PRIMARY KEY (Device, Inode, Size, ModTime))",
+            "CREATE INDEX HashCacheLastUsedIDX ON HashCache (LastUsed)",
+    };
+
+    /**
+     * Opens the database the first time a command needs it, so that --help, --diff or the snapshot queries do not
+     * boot Derby at all. The nested actions prepare their statements when they are first used, after this.
+     */
+    private static synchronized Connection db() {
+
+        Connection own = readConnection.get();
+        if (own != null)
+            return own;
+
+        if (c != null)
+            return c;
+
+        try {
+            long t = System.nanoTime();
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+            startupNanos[STARTUP_DRIVER] = System.nanoTime() - t;
+
+            // boot, and recovery when the last run did not shut down cleanly
+            t = System.nanoTime();
+            c = DriverManager.getConnection(dbUrl);
+            c.setAutoCommit(false); // duration / file is twice with AutoCommit set to true.
+            startupNanos[STARTUP_BOOT] = System.nanoTime() - t;
+
+            t = System.nanoTime();
+
+            // check if tables are created
+            try (Statement checkDb = c.createStatement()) {
+                checkDb.executeQuery("SELECT MIN(ID) FROM Directories");
+            } catch (SQLException e) {
+                prepareDb(null);
+            }
+
+            upgradeDb();
+            startupNanos[STARTUP_SCHEMA] = System.nanoTime() - t;
+
+            for (int i = STARTUP_DRIVER; i <= STARTUP_SCHEMA; i++)
+                Metrics.timeNanos(STARTUP_STEPS[i], startupNanos[i]);
+
+        } catch (Exception e) {
+            System.out.println(e.toString());
+            System.exit(0);
+        }
+
+        return c;
+    }
+
+    /**
+     * Directory of the database when it is on disk, null for the in-memory ones
+     */
+    private static Path dbDirectory() {
+
+        String name = dbUrl.startsWith("jdbc:derby:") ? dbUrl.substring("jdbc:derby:".length()) : null;
+        if (name == null || name.startsWith("memory:"))
+            return null;
+
+        if (name.indexOf(';') >= 0)
+            name = name.substring(0, name.indexOf(';'));
+        if (name.startsWith("directory:"))
+            name = name.substring("directory:".length());
+
+        return Paths.get(name);
+    }
+
+    @CmdLineParam(help = "Generate database structure: java DiskUtility --prepareDb [compact]. compact stores only the last segment of every directory path below the indexed roots")
+    public static void prepareDb(Vector<String> params) throws SQLException {
+
+        System.out.print("Creating database ... ");
+
+        try (Statement s = db().createStatement()) {
+
+            try {
+                s.execute("DROP TABLE NameTrigrams");
+            } catch (Exception e) {
+            }
+            try {
+                s.execute("DROP TABLE IndexState");
+            } catch (Exception e) {
+            }
+            try {
+                s.execute("DROP TABLE Files");
+            } catch (Exception e) {
+            }
+            try {
+                s.execute("DROP TABLE Directories");
+            } catch (Exception e) {
+            }
+
+            s.execute("CREATE TABLE Directories(ID INT NOT NULL PRIMARY KEY, DirPath VARCHAR(1000) UNIQUE, ParentID INT REFERENCES Directories(ID))");
+            s.execute("CREATE TABLE Files(ID INT NOT NULL GENERATED ALWAYS AS IDENTITY PRIMARY KEY, DirectoryRef INT REFERENCES Directories(ID), FileName VARCHAR(1000), NameHash INT, Size BIGINT)");
+            s.execute("CREATE INDEX FileNameHashIDX ON Files (NameHash)");
+            s.execute("CREATE INDEX FileSizeIDX on Files(Size)");
+
+        } catch (Exception e) {
+
+            System.out.println(e.toString());
+            throw new SQLException(e);
+
+        }  // according to this, all references to other tables are silently dropped: http://db.apache.org/derby/docs/10.0/manuals/reference/sqlj28.html
 
-                    Integer left_option = folder_action.get(folderLeft);
-                    Integer right_option = folder_action.get(folderRight);
+        upgradeDb();
+
+        boolean compact = params != null && params.contains("compact");
+        setState(DirectoryPaths.COMPACT_PATHS, compact ? 1 : 0);
+        db().commit();
+        DirectoryPaths.compact = compact;
+        DirectoryPaths.forget();
+
+        System.out.println(compact ? "OK (compact paths)" : "OK");
+    }
+
+    private static final String SCHEMA_VERSION = "SchemaVersion";
+
+    private static void upgradeDb() throws SQLException {
+
+        // the statements already applied fail, but each one is compiled first: skip them all when nothing is new
+        try {
+            if (getState(SCHEMA_VERSION, 0) == SCHEMA_UPGRADES.length)
+                return;
+        } catch (SQLException noStateYet) {
+        }
+
+        try (Statement s = db().createStatement()) {
+            for (String ddl : SCHEMA_UPGRADES) {
+                try {
+                    s.execute(ddl);
+                } catch (SQLException e) {
+                }
+            }
+        }
+
+        setState(SCHEMA_VERSION, SCHEMA_UPGRADES.length);
+        db().commit();
+    }
+
+    /**
+     * Every directory below a path has it as prefix, so a whole subtree is the (dir/, dir/ + 1) range of DirPath
+     *
+     * @return the exclusive bounds of the range
+     */
+    private static String[] subtreeRange(String dir) {
+        String prefix = dir.endsWith(File.separator) ? dir.substring(0, dir.length() - 1) : dir;
+        return new String[]{prefix + File.separator, prefix + (char) (File.separatorChar + 1)};
+    }
+
+    private static long getState(String name, long defaultValue) throws SQLException {
+
+        try (PreparedStatement ps = db().prepareStatement("SELECT Val FROM IndexState WHERE Name = ?")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : defaultValue;
+            }
+        }
+    }
+
+    private static void setState(String name, long value) throws SQLException {
+
+        try (PreparedStatement ps = db().prepareStatement("UPDATE IndexState SET Val = ? WHERE Name = ?")) {
+            ps.setLong(1, value);
+            ps.setString(2, name);
+            if (ps.executeUpdate() > 0)
+                return;
+        }
+
+        try (PreparedStatement ps = db().prepareStatement("INSERT INTO IndexState (Name, Val) VALUES (?, ?)")) {
+            ps.setString(1, name);
+            ps.setLong(2, value);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Builds the " AND (alias.FileName LIKE '%.ext1' OR ...)" filter used by the commands accepting a list of file types
+     */
+    private static String patternFilter(String alias, Vector<String> patterns) {
+
+        String patternSearch = "";
+        if (patterns.size() > 0) {
+            patternSearch += " AND (" + alias + ".FileName LIKE '%." + patterns.elementAt(0);
+
+            for (int i = 1; i < patterns.size(); i++)
+                patternSearch += "' OR " + alias + ".FileName LIKE '%." + patterns.elementAt(i);
+
+            patternSearch += "')";
+        }
+
+        return patternSearch;
+    }
+
+    /**
+     * The same test as patternFilter, for the rows filtered while streaming
+     */
+    private static boolean matchesPatterns(String name, Vector<String> patterns) {
+
+        if (patterns.size() == 0)
+            return true;
+
+        for (String p : patterns) {
+            if (name.endsWith("." + p))
+                return true;
+        }
+        return false;
+    }
+
+    private static String formatSize(long bytes) {
+
+        String[] units = {"B", "KB", "MB", "GB", "TB", "PB"};
+        int unit = 0;
+        while (unit < units.length - 1 && bytes >= 1024L << (10 * unit))
+            unit++;
+        return (bytes >> (10 * unit)) + units[unit];
+    }
+
+    @CmdLineParam(help = "Full file database update: java DiskUtility --updateDb dir1 dir2 ...")
+    public static void updateDb(Vector<String> directories) {
+
+        if (ShardAction.enabled) {
+            indexShards("--updateDb", directories);
+            return;
+        }
+
+        IndexDirectoryAction ida = new IndexDirectoryAction();
+
+        for (String dir : directories) {
+            ida.updateDb(dir);
+        }
+
+        new TrigramIndexAction().update();
+    }
+
+    @CmdLineParam(help = "Incremental file database update, only changed directories are read again: java DiskUtility --refreshDb dir1 dir2 ...")
+    public static void refreshDb(Vector<String> directories) {
+
+        if (ShardAction.enabled) {
+            indexShards("--refreshDb", directories);
+            return;
+        }
+
+        IndexDirectoryAction ida = new IndexDirectoryAction();
+
+        for (String dir : directories) {
+            ida.refreshDb(dir);
+        }
+
+        new TrigramIndexAction().update();
+    }
+
+    private static void indexShards(String command, Vector<String> directories) {
+
+        try {
+            ShardAction.index(command, directories);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "--sharded: the following --updateDb, --refreshDb, --locate, --usage and --duplicates use one database per root, " +
+            "indexed and queried in parallel. Example: --sharded --updateDb /mnt/disk1 /mnt/disk2 --duplicates 1")
+    public static void sharded(Vector<String> params) {
+        ShardAction.enabled = true;
+    }
+
+    @CmdLineParam(help = "--shardQuery usage|sizes|partial|full args...: the rows a shard sends back in --sharded mode")
+    public static void shardQuery(Vector<String> params) {
+
+        try {
+            ShardAction.query(params);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "Refreshes directories, then keeps their index current from file system events until stopped: java DiskUtility --watch dir1 dir2 ...")
+    public static void watch(Vector<String> directories) {
+
+        try {
+            new WatchAction().run(directories);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "Removes directories and everything below them from the file database: java DiskUtility --removeDb dir1 dir2 ...")
+    public static void removeDb(Vector<String> directories) {
+
+        DeleteDirectoryAction dda = new DeleteDirectoryAction();
+
+        for (String dir : directories) {
+
+            long tm = System.currentTimeMillis();
+            dda.deletedDirectories = dda.deletedFiles = 0;
+
+            try {
+                int parent = dda.findAndDeleteDirAndChildren(FileSystems.getDefault().getPath(dir));
+                new SubtreeTotalsAction().recompute(Collections.singleton(parent));
+                db().commit();
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+
+            System.out.println("Removed " + dda.deletedDirectories + " directories and " + dda.deletedFiles + " files under " + dir +
+                    " [" + (System.currentTimeMillis() - tm) + "ms].");
+        }
+    }
+
+    @CmdLineParam(help = "--snapshot file: writes a memory mapped, column oriented copy of the file database")
+    public static void snapshot(Vector<String> params) {
+
+        long tm = System.currentTimeMillis();
+
+        try {
+            Snapshot.export(params.size() > 0 ? params.elementAt(0) : "DiskUtility.snapshot");
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+
+        System.out.println("Duration: " + ((double) (System.currentTimeMillis() - tm)) / 1000.0 + "s.");
+    }
+
+    @CmdLineParam(help = "--export file: streams the file database to a compact binary file, sorted by path, for --import or --diff")
+    public static void export(Vector<String> params) {
+
+        try {
+            IndexDump.export(params.size() > 0 ? params.elementAt(0) : "DiskUtility.export");
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
 
-                    if (left_option != null && left_option == DELETE_ALL_FROM_DIRECTORY) {
-                        deleteFileAndEmptyDir(folderLeft, fileName);
-                    } else if (right_option != null && right_option == DELETE_ALL_FROM_DIRECTORY) {
-                        deleteFileAndEmptyDir(folderRight, fileName);
-                    } else {
+    @CmdLineParam(help = "--import file: loads an export, replacing what is indexed under its roots. Faster than indexing the directories again")
+    public static void importDb(Vector<String> params) {
 
-                        System.out.println("File: " + fileName + " [" + rs.getLong(4) + "MB]" + " f1.ID=" + rs.getLong(5) + " f2.ID=" + rs.getLong(6));
-                        System.out.println(" --> " + folderLeft + " --> d1.ID = " + rs.getLong(7));
-                        System.out.println(" --> " + folderRight + " --> d2.ID = " + rs.getLong(8));
+        try {
+            IndexDump.load(params.size() > 0 ? params.elementAt(0) : "DiskUtility.export");
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
 
-                        if (printOptionsMenu(left_option, right_option))
-                            try {
+        new TrigramIndexAction().update();
+    }
 
-                                Scanner input = new Scanner(System.in);
-                                int option = input.nextInt();
+    @CmdLineParam(help = "--diff old new [top]: files added, removed and resized between two exports, and the top directories by growth")
+    public static void diff(Vector<String> params) {
 
-                                if (option == DO_NOTHING)
-                                    continue;
+        if (params.size() < 2) {
+            System.out.println("--diff needs two exports.");
+            return;
+        }
 
-                                switch (option) {
+        try {
+            IndexDump.diff(params.elementAt(0), params.elementAt(1), params.size() > 2 ? Integer.parseInt(params.elementAt(2)) : 20);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
 
-                                    case IGNORE_FOLDER_RECURSIVE:
+    @CmdLineParam(help = "--fromSnapshot file: the following --locate, --usage and --duplicates run on a snapshot. Example: --fromSnapshot DiskUtility.snapshot --locate mp3")
+    public static void fromSnapshot(Vector<String> params) {
 
-                                        folder_action.put(input.nextLine(), IGNORE_ALL_FROM_DIRECTORY_RECURSIVELY);
-                                        break;
+        try {
+            snapshot = Snapshot.open(params.size() > 0 ? params.elementAt(0) : "DiskUtility.snapshot");
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
 
-                                    case DELETE_FOLDER_RECURSIVE:
+    @CmdLineParam(help = "--metrics file|-|off: appends the JSON metrics of every following command to file, - for the console (off by default, or -Ddiskutility.metrics=file). Example: --metrics DiskUtilityMetrics.jsonl --duplicates 1")
+    public static void metrics(Vector<String> params) {
 
-                                        String folder = input.nextLine();
-                                        folder = folder_action.put(folder, DELETE_ALL_FROM_DIRECTORY_RECURSIVELY);
+        if (params.size() == 0)
+            return;
 
-                                        if (folder != null && folderLeft.startsWith(folder))
-                                            deleteFileAndEmptyDir(folderLeft, fileName);
-                                        else if (folder != null && folderRight.startsWith(folder))
-                                            deleteFileAndEmptyDir(folderRight, fileName);
-
-                                        break;
-
-                                    case DELETE_ALL_LEFT:
-                                        folder_action.put(folderLeft, DELETE_ALL_FROM_DIRECTORY);
-                                    case DELETE_LEFT:
-                                        deleteFileAndEmptyDir(folderLeft, fileName);
-                                        break;
-                                    case DELETE_ALL_RIGHT:
-                                        folder_action.put(folderRight, DELETE_ALL_FROM_DIRECTORY);
-                                    case DELETE_RIGHT:
-                                        deleteFileAndEmptyDir(folderRight, fileName);
-                                        break;
-                                    case SKIP_ALL_FILES_FROM_DIRECTORY_LEFT:
-                                        folder_action.put(folderLeft, SKIP_ALL_FILES_FROM_DIRECTORY);
-                                        break;
-                                    case SKIP_ALL_FILES_FROM_DIRECTORY_RIGHT:
-                                        folder_action.put(folderRight, SKIP_ALL_FILES_FROM_DIRECTORY);
-                                        break;
-                                }
+        String file = params.elementAt(0);
+        Metrics.file = file.equals("off") ? null : file;
+    }
 
-                            } catch (Exception ex) {
-                                System.out.println(ex.toString());
-                            }
-                    }
-                }
+    @CmdLineParam(help = "--db name|memory|jdbc:url [derby.property=value ...]: the database of the following commands, and Derby settings for its boot. " +
+            "Example: --db memory derby.storage.pageCacheSize=4000 --updateDb dir1 --duplicates")
+    public static void db(Vector<String> params) {
 
+        if (c != null) {
+            System.out.println("--db must come before the commands using the database.");
+            return;
+        }
 
-            } catch (SQLException ex) {
-                 System.out.println(ex.toString());
-            }
+        for (String p : params) {
+            int eq = p.indexOf('=');
+            if (p.startsWith("derby.") && eq > 0)
+                System.setProperty(p.substring(0, eq), p.substring(eq + 1)); // read by Derby when it boots
+            else if (p.equals("memory"))
+                dbUrl = "jdbc:derby:memory:DiskUtility;create=true";
+            else if (p.startsWith("jdbc:"))
+                dbUrl = p;
+            else
+                dbUrl = "jdbc:derby:" + p + ";create=true";
         }
     }
 
-    static {
-        try {
-            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    @CmdLineParam(help = "--startup: opens the database and prints where the time to get there went")
+    public static void startup(Vector<String> params) {
 
-            c = DriverManager.getConnection("jdbc:derby:AlexGrisDiskUtilityDb;create=true");
-            c.setAutoCommit(false); // duration / file is twice with AutoCommit set to true.
+        db();
 
-            // check if tables are created
-            try (Statement checkDb = c.createStatement()) {
-                checkDb.executeQuery("SELECT MIN(ID) FROM Directories");
-            } catch (SQLException e) {
-                prepareDb(null);
-            }
+        startupNanos[STARTUP_JVM] = (MAIN_STARTED - java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime()) * 1000000;
+
+        System.out.println(dbUrl);
+        for (int i = 0; i < STARTUP_STEPS.length; i++)
+            System.out.println("  " + STARTUP_STEPS[i].substring("startup.".length()) + ": " + startupNanos[i] / 1000000 + "ms");
+    }
+
+    @CmdLineParam(help = "--serve [socket]: keeps the database open and runs the commands sent with --client [socket] --command ..., " +
+            "one client at a time except those sending only --locate, --usage, --histogram or --largest, which run next to the others on what was committed, without metrics; " +
+            "a --watch sent to it keeps running in the background. The socket is for its owner only. Example: --serve, then --client --locate mp3 and --client --stop")
+    public static void serve(Vector<String> params) {
 
+        try {
+            new ServerAction().serve(params.size() > 0 ? params.elementAt(0) : ServerAction.SOCKET);
         } catch (Exception e) {
             System.out.println(e.toString());
-            System.exit(0);
         }
     }
 
-    @CmdLineParam(help = "Generate database structure: java DiskUtility --prepareDb")
-    private static void prepareDb(Vector<String> noParam) throws SQLException {
+    @CmdLineParam(help = "--parallel [threads]: crawl with a pool of threads in the following --updateDb commands. Example: --parallel 8 --updateDb dir1")
+    public static void parallel(Vector<String> params) {
 
-        System.out.print("Creating database ... ");
-
-        try (Statement s = c.createStatement()) {
+        IndexDirectoryAction.parallelism = Runtime.getRuntime().availableProcessors();
 
+        if (params.size() > 0) {
             try {
-                s.execute("DROP TABLE Files");
-            } catch (Exception e) {
-            }
-            try {
-                s.execute("DROP TABLE Directories");
-            } catch (Exception e) {
+                IndexDirectoryAction.parallelism = Math.max(0, Integer.parseInt(params.elementAt(0)));
+            } catch (NumberFormatException ex) {
+                System.out.println(ex.toString());
             }
+        }
+    }
 
-            s.execute("CREATE TABLE Directories(ID INT NOT NULL PRIMARY KEY, DirPath VARCHAR(1000) UNIQUE, ParentID INT REFERENCES Directories(ID))");
-            s.execute("CREATE TABLE Files(ID INT NOT NULL GENERATED ALWAYS AS IDENTITY PRIMARY KEY, DirectoryRef INT REFERENCES Directories(ID), FileName VARCHAR(1000), NameHash INT, Size BIGINT)");
-            s.execute("CREATE INDEX FileNameHashIDX ON Files (NameHash)");
-            s.execute("CREATE INDEX FileSizeIDX on Files(Size)");
+    @CmdLineParam(help = "--io [hdd|ssd|store=threads[:MB/s]] ...: concurrent reads and bandwidth cap per device for the content reads of the following commands, " +
+            "store being a FileStore name or mount point; lists the file stores and their settings. Defaults: hdd=1 ssd=4, or -Ddiskutility.io=hdd=1:80,ssd=8. " +
+            "Example: --io hdd=1:80 /mnt/backup=2 --duplicates 1")
+    public static void io(Vector<String> params) {
 
-        } catch (Exception e) {
+        Map<String, IoScheduler.Limit> limits = new HashMap<>(IoScheduler.limits);
 
+        try {
+            for (String p : params)
+                IoScheduler.parse(p, limits);
+        } catch (IllegalArgumentException e) {
             System.out.println(e.toString());
-            throw new SQLException(e);
+            return;
+        }
 
-        }  // according to this, all references to other tables are silently dropped: http://db.apache.org/derby/docs/10.0/manuals/reference/sqlj28.html
+        IoScheduler.limits = limits;
 
-        System.out.println("OK");
+        Set<String> listed = new HashSet<>();
+        for (FileStore store : FileSystems.getDefault().getFileStores()) {
+            try {
+                if (store.getTotalSpace() == 0 || !listed.add(store.toString()))
+                    continue; // proc, sysfs and the like, or mounted twice
+            } catch (IOException e) {
+                continue;
+            }
+            boolean rotational = IoScheduler.rotational(store);
+            System.out.println(store + " [" + (rotational ? "hdd" : "ssd") + "]: " + IoScheduler.limit(store, rotational));
+        }
     }
 
-    @CmdLineParam(help = "Full file database update: java DiskUtility --updateDb dir1 dir2 ...")
-    public static void updateDb(Vector<String> directories) {
+    @CmdLineParam(help = "--locate term1 term2 ...: Locates the files whose names contain all the terms")
+    public static void locate(Vector<String> files) {
 
-        IndexDirectoryAction ida = new IndexDirectoryAction();
+        if (snapshot != null) {
+            snapshot.locate(files);
+            return;
+        }
 
-        for (String dir : directories) {
-            ida.updateDb(dir);
+        if (ShardAction.enabled) {
+            try {
+                ShardAction.locate(files);
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+            return;
         }
-    }
 
-    @CmdLineParam(help = "--locate: Locates a set of files")
-    public static void locate(Vector<String> files) {
+        // terms shorter than a trigram can only be found by scanning
+        if (new TrigramIndexAction().locate(files))
+            return;
 
-        String sql = "SELECT d.DirPath, f.FileName FROM Directories d, Files f WHERE d.ID = f.DirectoryRef";
+        String sql = "SELECT d.DirPath, f.FileName, d.ID FROM Directories d, Files f WHERE d.ID = f.DirectoryRef";
 
         for (String s : files) {
             sql += " AND LOWER(f.FileName) LIKE ?";
         }
 
-        try (PreparedStatement ps_locateFile = c.prepareStatement(sql)) {
+        try (PreparedStatement ps_locateFile = db().prepareStatement(sql)) {
 
             int param = 0;
             for (String s : files) {
@@ -628,7 +7282,7 @@ public class DiskUtility {
             ResultSet rs = ps_locateFile.executeQuery();
 
             while (rs.next()) {
-                System.out.println(rs.getString(1) + File.separator + rs.getString(2));
+                System.out.println(DirectoryPaths.path(rs.getInt(3), rs.getString(1)) + File.separator + rs.getString(2));
             }
         } catch (SQLException ex) {
             System.out.println(ex.toString());
@@ -636,7 +7290,7 @@ public class DiskUtility {
 
     }
 
-    @CmdLineParam(help = "--duplicates [size] [type1] [type2]...: finds the duplicates.Example: --duplicates 1 mp3 avi docx mpg mp4 jpg png bmp jpeg")
+    @CmdLineParam(help = "--duplicates [size] [type1] [type2]...: finds the files with identical content (size in KB); without types, whole duplicate directory trees are listed first. Example: --duplicates 1 mp3 avi docx mpg mp4 jpg png bmp jpeg")
     public static void duplicates(Vector<String> patterns) {
 
         long size = 0;
@@ -650,32 +7304,224 @@ public class DiskUtility {
             }
         }
 
+        if (snapshot != null) {
+            snapshot.duplicates(size, patterns);
+            return;
+        }
+
+        if (ShardAction.enabled) {
+            try {
+                ShardAction.duplicates(size, patterns);
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+            return;
+        }
+
+        new ContentHashAction().hashCandidates(size * 1024, patterns);
+
+        // whole trees first, so their files are not listed again one by one
+        if (patterns.isEmpty()) {
+            try {
+                ld.trees = new DuplicateTreesAction();
+                ld.trees.find(Math.max(size * 1024, 1));
+                if (!ld.trees.identical.isEmpty())
+                    ld.trees.printIdentical();
+            } catch (SQLException e) {
+                System.out.println(e.toString());
+                ld.trees = null;
+            }
+        }
+
         ld.printDuplicates(size, patterns);
+
+        if (ld.trees != null && ld.trees.suppressedFiles > 0)
+            System.out.println(ld.trees.suppressedFiles + " duplicate files inside the duplicate trees above were not listed again.");
+    }
+
+    @CmdLineParam(help = "--hashCache [maxEntries]: entries and lifetime hit rate of the cache of content hashes by file identity, trimmed to maxEntries " +
+            "least recently used ones when given. Example: --hashCache 100000")
+    public static void hashCache(Vector<String> params) {
+
+        try {
+            long maxEntries = params.size() > 0 ? Long.parseLong(params.elementAt(0)) : HashCache.MAX_ENTRIES;
+            long entries = new HashCache().flush(maxEntries);
+
+            System.out.println("Hash cache: " + entries + " entries, at most " + HashCache.MAX_ENTRIES + " kept, unused ones for " + HashCache.MAX_AGE_DAYS +
+                    " days, files from " + formatSize(HashCache.MIN_SIZE) + ".");
+            System.out.println("Since the last --prepareDb: " + HashCache.hitRate(getState(HashCache.HITS, 0), getState(HashCache.MISSES, 0)) + ".");
+        } catch (NumberFormatException | SQLException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "--duplicate-dirs [minMB] [minRatio%]: whole directory trees present more than once, checked on content, then the larger trees " +
+            "sharing at least minRatio% of their bytes (80 by default) around them. Example: --duplicate-dirs 100 90")
+    public static void duplicateDirs(Vector<String> params) {
+
+        long minMB = 0;
+        double minRatio = 0.8;
+
+        try {
+            if (params.size() > 0)
+                minMB = Long.parseLong(params.elementAt(0));
+            if (params.size() > 1)
+                minRatio = Double.parseDouble(params.elementAt(1).replace("%", "")) / 100;
+        } catch (NumberFormatException e) {
+            System.out.println(e.toString());
+            return;
+        }
+
+        try {
+            DuplicateTreesAction trees = new DuplicateTreesAction();
+            trees.find(Math.max(minMB * 1024 * 1024, 1));
+            trees.printIdentical();
+            trees.printSimilar(minRatio);
+        } catch (SQLException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "--largest [N] [type1] [type2]...: the N largest files, 20 by default. Example: --largest 50 mp4 mkv")
+    public static void largest(Vector<String> params) {
+
+        int n = 20;
+        if (params.size() > 0) {
+            try {
+                n = Integer.parseInt(params.elementAt(0));
+                params.removeElementAt(0);
+            } catch (NumberFormatException noCount) {
+            }
+        }
+
+        if (snapshot != null) {
+            snapshot.largest(n, params);
+            return;
+        }
+
+        // read in FileSizeDescIDX order and stopped after n matches, so nothing is sorted
+        try (PreparedStatement ps = db().prepareStatement("SELECT DirectoryRef, FileName, Size FROM Files ORDER BY Size DESC")) {
+
+            if (params.isEmpty())
+                ps.setMaxRows(n);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                for (int found = 0; found < n && rs.next(); ) {
+                    String name = rs.getString(2);
+                    if (matchesPatterns(name, params)) {
+                        System.out.println(DirectoryPaths.path(rs.getInt(1)) + File.separator + name + ": " + formatSize(rs.getLong(3)));
+                        found++;
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            System.out.println(ex.toString());
+        }
+    }
+
+    @CmdLineParam(help = "--histogram [top]: files and bytes by power of two of the size and by extension, top extensions only (20 by default)")
+    public static void histogram(Vector<String> params) {
+
+        int top = params.size() > 0 ? Integer.parseInt(params.elementAt(0)) : 20;
+
+        if (snapshot != null) {
+            snapshot.histogram(top);
+        } else {
+            SizeHistogram histogram = new SizeHistogram();
+
+            try (Statement s = db().createStatement(); ResultSet rs = s.executeQuery("SELECT FileName, Size FROM Files")) {
+                while (rs.next())
+                    histogram.add(rs.getString(1), rs.getLong(2));
+            } catch (SQLException ex) {
+                System.out.println(ex.toString());
+            }
+
+            histogram.print(top);
+        }
     }
 
-    @CmdLineParam(help = "--usage [min_dir_size MB]")
+    @CmdLineParam(help = "--dedupePlan plan [rules]: writes the copies to remove to a plan file without touching them, and prints what it would reclaim. " +
+            "Rules: keep-newest, keep-oldest, keep-under=dir, delete-under=dir, hardlink, min=KB, ext=mp3,avi. Example: --dedupePlan plan.tsv keep-under=/photos delete-under=/tmp min=1")
+    public static void dedupePlan(Vector<String> params) {
+
+        if (params.isEmpty()) {
+            System.out.println("--dedupePlan needs a plan file.");
+            return;
+        }
+
+        try {
+            new DedupePlanAction(params.subList(1, params.size())).plan(params.elementAt(0));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    @CmdLineParam(help = "--dedupeRun plan [workers]: applies a plan from --dedupePlan with parallel workers. Run it again to resume; what is done is in plan.journal")
+    public static void dedupeRun(Vector<String> params) {
+
+        if (params.isEmpty()) {
+            System.out.println("--dedupeRun needs a plan file.");
+            return;
+        }
+
+        DedupePlanAction.run(params.elementAt(0), params.size() > 1 ? Integer.parseInt(params.elementAt(1)) : 4);
+    }
+
+    @CmdLineParam(help = "--usage [min_dir_size MB] | --usage dir [depth]: space used by directories, or the tree of subdirectories of dir with their recursive totals")
     public static void usage(Vector<String> params) {
 
         int min_dir_size = 0;
         if (params.size() > 0) {
-            min_dir_size = Integer.parseInt(params.elementAt(0));
+            try {
+                min_dir_size = Integer.parseInt(params.elementAt(0));
+            } catch (NumberFormatException notSize) {
+                if (ShardAction.enabled) {
+                    try {
+                        ShardAction.usageTree(params.elementAt(0), params.size() > 1 ? params.elementAt(1) : "1");
+                    } catch (Exception e) {
+                        System.out.println(e.toString());
+                    }
+                    return;
+                }
+                usageTree(params.elementAt(0), params.size() > 1 ? Integer.parseInt(params.elementAt(1)) : 1);
+                return;
+            }
+        }
+
+        if (snapshot != null) {
+            snapshot.usage(min_dir_size);
+            return;
+        }
+
+        if (ShardAction.enabled) {
+            try {
+                ShardAction.usage(min_dir_size);
+            } catch (Exception e) {
+                System.out.println(e.toString());
+            }
+            return;
         }
 
-        String sql_all_files = "(SELECT SUM(Size) / (1024 * 1024) AS Total FROM Files)";
+        // the roots' totals cover every file
+        String sql_all_files = "SELECT SUM(TotalSize) / (1024 * 1024) AS Total FROM Directories WHERE ParentID IS NULL";
 
-        String sql_filesize_dir = "SELECT file.Size, d.DirPath FROM " +
+        String sql_filesize_dir = "SELECT file.Size, d.DirPath, d.ID FROM " +
                 "(SELECT SUM(f.Size) / (1024 * 1024) AS Size, f.DirectoryRef AS DirRef FROM Files f GROUP BY f.DirectoryRef) file, Directories d " +
                 "WHERE file.DirRef = d.ID AND file.Size > ? ORDER BY file.Size DESC";
 
 
         try (
-                PreparedStatement ps_all_files = c.prepareStatement(sql_all_files);
-                PreparedStatement ps_dirs = c.prepareStatement(sql_filesize_dir);
+                PreparedStatement ps_all_files = db().prepareStatement(sql_all_files);
+                PreparedStatement ps_dirs = db().prepareStatement(sql_filesize_dir);
         ) {
 
+            // roots indexed before the totals existed are rolled up now, as usageTree does
+            if (readConnection.get() == null)
+                SubtreeTotalsAction.rollUpMissingRoots();
+
             ResultSet rs = ps_all_files.executeQuery();
             rs.next();
-            long fullsize = rs.getLong(1);
+            long fullsize = Math.max(rs.getLong(1), 1);
             rs.close();
 
             ps_dirs.setInt(1, min_dir_size);
@@ -685,7 +7531,7 @@ public class DiskUtility {
 
             while (rs.next()) {
                 long dirSize = rs.getLong(1);
-                System.out.println(rs.getString(2) + ": " + dirSize + "MB = " + (dirSize * 100) / fullsize + "%");
+                System.out.println(DirectoryPaths.path(rs.getInt(3), rs.getString(2)) + ": " + dirSize + "MB = " + (dirSize * 100) / fullsize + "%");
                 total_size += dirSize;
             }
 
@@ -697,6 +7543,121 @@ public class DiskUtility {
         }
     }
 
+    /**
+     * Prints dir and its subdirectories down to depth levels, largest first, from the precomputed totals
+     */
+    private static void usageTree(String dir, int depth) {
+
+        try (
+                PreparedStatement ps_dir = db().prepareStatement("SELECT ID, TotalSize, TotalFiles, TotalDirs FROM Directories WHERE ID=?");
+                PreparedStatement ps_children = db().prepareStatement("SELECT ID, DirPath, TotalSize, TotalFiles, TotalDirs FROM Directories WHERE ParentID=? ORDER BY TotalSize DESC")
+        ) {
+            String path = Paths.get(dir).toAbsolutePath().toString();
+
+            ps_dir.setInt(1, DirectoryPaths.find(path));
+            ResultSet rs = ps_dir.executeQuery();
+            if (!rs.next()) {
+                System.out.println(dir + " is not indexed.");
+                return;
+            }
+
+            if (rs.getObject(2) == null) {
+                // indexed before the totals existed
+                rs.close();
+                new SubtreeTotalsAction().rollUp(path, true);
+                db().commit();
+                rs = ps_dir.executeQuery();
+                rs.next();
+            }
+
+            int id = rs.getInt(1);
+            long rootSize = Math.max(rs.getLong(2), 1);
+            System.out.println(path + ": " + rs.getLong(2) / (1024 * 1024) + "MB, " + rs.getLong(3) + " files, " + rs.getLong(4) + " directories");
+            rs.close();
+
+            printUsageLevel(ps_children, id, 1, depth, rootSize);
+
+        } catch (SQLException ex) {
+            System.out.println(ex.toString());
+        }
+    }
+
+    private static void printUsageLevel(PreparedStatement ps_children, int id, int level, int depth, long rootSize) throws SQLException {
+
+        if (level > depth)
+            return;
+
+        StringBuilder indent = new StringBuilder();
+        for (int i = 0; i < level; i++)
+            indent.append("  ");
+
+        // the cursor is reused by the next level, so the children are read before descending
+        List<Integer> ids = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+
+        ps_children.setInt(1, id);
+        try (ResultSet rs = ps_children.executeQuery()) {
+            while (rs.next()) {
+                long size = rs.getLong(3);
+                ids.add(rs.getInt(1));
+                lines.add(indent + DirectoryPaths.path(rs.getInt(1), rs.getString(2)) + ": " + size / (1024 * 1024) + "MB = " + (size * 100) / rootSize + "%, " +
+                        rs.getLong(4) + " files, " + rs.getLong(5) + " directories");
+            }
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            System.out.println(lines.get(i));
+            printUsageLevel(ps_children, ids.get(i), level + 1, depth, rootSize);
+        }
+    }
+
+    @CmdLineParam(help = "--generateTree dir [width] [depth] [filesPerDir] [maxSizeKB] [duplicateRatio] [seed]: creates a synthetic tree for benchmarks")
+    public static void generateTree(Vector<String> params) {
+
+        if (params.size() == 0) {
+            System.out.println("Missing directory.");
+            return;
+        }
+
+        TreeGenerator generator = new TreeGenerator(params, 1);
+        long tm = System.currentTimeMillis();
+
+        try {
+            generator.generate(Paths.get(params.elementAt(0)));
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        System.out.println("Generated " + generator.dirs + " directories, " + generator.files + " files (" + generator.duplicates + " copies), " +
+                generator.bytes / (1024 * 1024) + "MB [" + (System.currentTimeMillis() - tm) + "ms].");
+    }
+
+    @CmdLineParam(help = "--benchmark [dir] [iterations] [results.json] [width] [depth] [filesPerDir] [maxSizeKB] [duplicateRatio] [seed]: times indexing, deletion and the queries on a generated tree, " +
+            "in a database of its own next to it (dirDb), or in memory after --db memory")
+    public static void benchmark(Vector<String> params) {
+
+        String dir = params.size() > 0 ? params.elementAt(0) : "DiskUtilityBenchmarkTree";
+        int iterations = params.size() > 1 ? Integer.parseInt(params.elementAt(1)) : 5;
+        String json = params.size() > 2 ? params.elementAt(2) : "benchmark.json";
+
+        // the measurements clear and recompute hashes over the whole database, so they never run on the user's one
+        if (c != null) {
+            System.out.println("--benchmark must come before the commands using the database.");
+            return;
+        }
+        if (!dbUrl.startsWith("jdbc:derby:memory:")) {
+            Path tree = Paths.get(dir).toAbsolutePath();
+            dbUrl = "jdbc:derby:" + tree.resolveSibling(tree.getFileName() + "Db") + ";create=true";
+        }
+        System.out.println("Benchmark database: " + dbUrl);
+
+        try {
+            new BenchmarkAction(iterations).run(dir, new TreeGenerator(params, 3), json);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+        }
+    }
+
     @CmdLineParam(help = "Show help: java DiskUtility --help")
     public static void help(Vector<String> p) {
 
@@ -710,36 +7671,79 @@ public class DiskUtility {
         }
     }
 
+    private static void run(Method mth, Vector<String> params) throws InvocationTargetException, IllegalAccessException {
+
+        Metrics.start(mth.getName());
+        try {
+            mth.invoke(null, params);
+        } finally {
+            Metrics.dump();
+        }
+    }
+
     /**
-     * Run with --help for cmd line help
-     *
-     * @param args
+     * Runs the --command param1 param2 ... sequence, one command after the other
      */
-    public static void main(String[] args) {
+    private static void runCommands(String[] args) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
 
         Method mth = null;
         Vector<String> params = new Vector<>();
 
-        try {
+        for (String arg : args) {
 
-            for (String arg : args) {
+            if (arg.length() >= 2 && arg.charAt(0) == '-' && arg.charAt(1) == '-') {
 
-                if (arg.length() >= 2 && arg.charAt(0) == '-' && arg.charAt(1) == '-') {
+                if (mth != null) {
+                    run(mth, params);
+                    params = new Vector<>();
+                }
 
-                    if (mth != null) {
-                        mth.invoke(null, params);
-                        params = new Vector<>();
-                    }
+                // --duplicate-dirs is the same command as --duplicateDirs
+                StringBuilder name = new StringBuilder();
+                for (int i = 2; i < arg.length(); i++) {
+                    if (arg.charAt(i) == '-' && i + 1 < arg.length())
+                        name.append(Character.toUpperCase(arg.charAt(++i)));
+                    else
+                        name.append(arg.charAt(i));
+                }
 
-                    mth = DiskUtility.class.getMethod(arg.substring(2), Vector.class);
+                String command = name.toString();
+                if (command.equals("import"))
+                    command = "importDb"; // a keyword cannot name the method
 
-                } else if (mth != null && params != null) {
-                    params.add(arg);
-                }
+                mth = DiskUtility.class.getMethod(command, Vector.class);
+
+            } else if (mth != null && params != null) {
+                params.add(arg);
+            }
+        }
+
+        if (mth != null)
+            run(mth, params);
+    }
+
+    /**
+     * Run with --help for cmd line help
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        // --client [socket] --command ...: everything is forwarded to a --serve process
+        if (args.length > 0 && args[0].equals("--client")) {
+
+            int first = args.length > 1 && !args[1].startsWith("--") ? 2 : 1;
+            try {
+                ServerAction.client(first == 2 ? args[1] : ServerAction.SOCKET, Arrays.copyOfRange(args, first, args.length));
+            } catch (IOException e) {
+                System.out.println(e.toString());
             }
+            return;
+        }
+
+        try {
 
-            if (mth != null)
-                mth.invoke(null, params);
+            runCommands(args);
 
         } catch (NoSuchMethodException ex) {
             System.out.println(ex.toString());